@@ -0,0 +1,107 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import hudson.util.ArgumentListBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@link GrailsBuilder} does for every build before Grails is started: evaluating the
+ * configured values, parsing the targets and assembling the command line of each target.
+ *
+ * Run with the {@code benchmark} profile, see the pom.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GrailsBuilderBenchmark {
+
+    private static final String PLAIN = "test-app -clean -echoOut";
+    private static final String EXPRESSION = "war target/${env['JOB_NAME']}-${env['BUILD_NUMBER']}.war";
+    private static final String TARGETS = "clean \"test-app -clean -echoOut\" \"test-app functional: -baseUrl=http://localhost:${env['PORT']}/app\" "
+            + "codenarc doc \"war target/${env['JOB_NAME']}-${env['BUILD_NUMBER']}.war\" \"set-version ${env['BUILD_NUMBER']}\" package";
+
+    /**
+     * Number of arguments of the target passed to {@link GrailsBuilder#addArgument}.
+     */
+    @Param({"10", "100"})
+    public int arguments;
+
+    private EnvVars env;
+    private GrailsBuilder builder;
+    private GrailsExecutionPlan plan;
+    private String[] targetAndArgs;
+
+    @Setup
+    public void setUp() {
+        env = new EnvVars();
+        env.put("JOB_NAME", "grails-app");
+        env.put("BUILD_NUMBER", "42");
+        env.put("PORT", "8080");
+        builder = new GrailsBuilder(TARGETS, null, null, null, null, null, null, false, true, false, true, true, true, true);
+        targetAndArgs = new String[arguments + 1];
+        targetAndArgs[0] = "test-app";
+        for (int i = 1; i <= arguments; i++) {
+            targetAndArgs[i] = "-Dtest.argument." + i + "=value" + i;
+        }
+        plan = new GrailsExecutionPlan(Collections.singletonList("grails"), Collections.<String, String>emptyMap(),
+                Collections.<String>emptyList(), Arrays.asList("--non-interactive", "--plain-output", "--stacktrace", "--verbose", "--refresh-dependencies"), env);
+    }
+
+    @Benchmark
+    public String evalPlain() {
+        return GrailsBuilder.eval(env, PLAIN);
+    }
+
+    @Benchmark
+    public String evalExpression() {
+        return GrailsBuilder.eval(env, EXPRESSION);
+    }
+
+    @Benchmark
+    public List<String[]> getTargetsToRun() {
+        return builder.getTargetsToRun(env);
+    }
+
+    /**
+     * Adds the arguments of a target along with the five global options, one option at a time.
+     */
+    @Benchmark
+    public ArgumentListBuilder addArgument() {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(targetAndArgs[0]);
+        builder.addArgument("--non-interactive", true, args, env, targetAndArgs);
+        builder.addArgument("--plain-output", true, args, env, targetAndArgs);
+        builder.addArgument("--stacktrace", true, args, env, targetAndArgs);
+        builder.addArgument("--verbose", true, args, env, targetAndArgs);
+        builder.addArgument("--refresh-dependencies", true, args, env, targetAndArgs);
+        return args;
+    }
+
+    /**
+     * The same command line as {@link #addArgument}, as the builds assemble it.
+     */
+    @Benchmark
+    public ArgumentListBuilder addTarget() {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        plan.addTarget(args, targetAndArgs);
+        return args;
+    }
+}
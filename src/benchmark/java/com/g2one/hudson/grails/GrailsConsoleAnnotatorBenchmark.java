@@ -0,0 +1,97 @@
+package com.g2one.hudson.grails;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link GrailsConsoleAnnotator} on a multi-MB log of a Grails build, with the events
+ * recorded the way the builder records them. Every line of the output of every target goes through it.
+ *
+ * Each operation annotates the whole log of {@link #size} characters, so the throughput in characters
+ * per second is the number of operations per second times the size. UTF-16 goes through the path
+ * decoding every line. {@link #decoding} is the baseline, matching lines the way they were before
+ * matching on raw bytes, by decoding and lower casing every line.
+ *
+ * Run with the {@code benchmark} profile, see the pom.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GrailsConsoleAnnotatorBenchmark {
+
+    /**
+     * What a Grails 2 build prints, from the dependency resolution to the end of the tests,
+     * in about the proportions of a real log with <tt>--verbose</tt> and <tt>--stacktrace</tt>.
+     */
+    private static final String[] LINES = {
+        "| Loading Grails 2.0.4",
+        "| Configuring classpath",
+        "| Resolving dependencies...",
+        "[DEBUG] 2012-06-01 12:00:00,000 org.codehaus.groovy.grails.plugins.DefaultGrailsPluginManager - Loading plugin [controllers]",
+        "[DEBUG] 2012-06-01 12:00:00,012 org.codehaus.groovy.grails.commons.spring.GrailsRuntimeConfigurator - [RuntimeConfiguration] Configuring bean",
+        "| Environment set to test.....",
+        "| Compiling 212 source files.....",
+        "| Running 340 unit tests...",
+        "| Running 340 unit tests... 42 of 340",
+        "| Running 340 unit tests... 43 of 340",
+        "| Failure:  testSave(com.example.BookControllerTests)",
+        "|  junit.framework.AssertionFailedError: expected:<1> but was:<0>",
+        "\tat org.codehaus.groovy.runtime.callsite.AbstractCallSite.call(AbstractCallSite.java:116)",
+        "\tat org.codehaus.groovy.runtime.callsite.CallSiteArray.defaultCall(CallSiteArray.java:42)",
+        "\tat com.example.BookControllerTests.testSave(BookControllerTests.groovy:27)",
+        "| Completed 340 unit tests, 1 failed in 4231ms",
+        "| Tests FAILED  - view reports in target/test-reports",
+    };
+
+    @Param({"4194304"})
+    public int size;
+
+    @Param({"UTF-8", "UTF-16"})
+    public String charset;
+
+    private byte[] log;
+    private Charset cs;
+
+    @Setup
+    public void setUp() {
+        cs = Charset.forName(charset);
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; buf.length() < size; i++) {
+            buf.append(LINES[i % LINES.length]).append('\n');
+        }
+        log = buf.toString().getBytes(cs);
+    }
+
+    @Benchmark
+    public boolean annotate() throws IOException {
+        GrailsConsoleAnnotator gca = new GrailsConsoleAnnotator(new NullOutputStream(), cs, GrailsOutputPattern.defaults(), new GrailsEventsAction());
+        gca.write(log);
+        gca.forceEol();
+        return gca.isBuildFailingDueToFailingTests();
+    }
+
+    @Benchmark
+    public boolean decoding() throws IOException {
+        DecodingAnnotator annotator = new DecodingAnnotator(new NullOutputStream(), cs);
+        annotator.write(log);
+        annotator.forceEol();
+        return annotator.isBuildFailingDueToFailingTests();
+    }
+}
@@ -0,0 +1,80 @@
+package com.g2one.hudson.grails;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Node;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serializes the updates of a cache directory shared by the builds running on a node.
+ *
+ * A {@link FileLock} only excludes other processes, so builds running in the same JVM are
+ * excluded by a monitor as well, one per directory so that the updates of different caches
+ * don't wait for each other.
+ */
+final class CacheLock {
+
+    interface Body<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    private static final ConcurrentMap<String, Object> MONITORS = new ConcurrentHashMap<String, Object>();
+
+    private CacheLock() {
+    }
+
+    /**
+     * The <tt>grails-cache</tt> directory below the root directory of a node, where the caches are.
+     *
+     * @throws AbortException if the node is offline
+     */
+    static FilePath getCacheRoot(Node node) throws AbortException {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            throw new AbortException(node.getDisplayName() + " is offline");
+        }
+        return root.child("grails-cache");
+    }
+
+    static <T> T withLock(File dir, Body<T> body) throws IOException, InterruptedException {
+        // another build may create it in between, which mkdirs() reports as a failure
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        synchronized (monitor(dir)) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dir, ".lock"), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    return body.run();
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * The monitor of a directory, the same for all the paths of the directory.
+     */
+    static Object monitor(File dir) throws IOException {
+        String path = dir.getCanonicalPath();
+        Object monitor = MONITORS.get(path);
+        if (monitor == null) {
+            Object created = new Object();
+            monitor = MONITORS.putIfAbsent(path, created);
+            if (monitor == null) {
+                monitor = created;
+            }
+        }
+        return monitor;
+    }
+}
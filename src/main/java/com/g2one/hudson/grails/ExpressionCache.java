@@ -0,0 +1,88 @@
+package com.g2one.hudson.grails;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evaluates the GString expressions used in the builder configuration, compiling each
+ * distinct expression only once.
+ *
+ * Compiled script classes are kept in a bounded LRU map. Every class is compiled by its own
+ * {@link GroovyShell}, so an evicted class can be unloaded together with its class loader.
+ * Lines without any GString syntax are only trimmed, without going through Groovy.
+ */
+final class ExpressionCache {
+
+    static final int DEFAULT_SIZE = 256;
+
+    private final Map<String, Class<? extends Script>> scripts;
+
+    ExpressionCache(final int maxSize) {
+        this.scripts = new LinkedHashMap<String, Class<? extends Script>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Class<? extends Script>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Evaluates a single line as if it were the body of a double quoted Groovy string,
+     * with {@code env} and {@code sys} bound to the given environment and the system properties.
+     */
+    String evaluate(String line, Map<String, String> env) {
+        if (isPlain(line)) {
+            return line.trim();
+        }
+        Binding binding = new Binding();
+        binding.setVariable("env", env);
+        binding.setVariable("sys", System.getProperties());
+        Object value = InvokerHelper.createScript(compile(line), binding).run();
+        if (value == null) {
+            return line;
+        }
+        return value.toString().trim();
+    }
+
+    int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    private Class<? extends Script> compile(String line) {
+        Class<? extends Script> script;
+        synchronized (scripts) {
+            script = scripts.get(line);
+        }
+        if (script == null) {
+            script = new GroovyShell().parse("return \"" + line + "\"").getClass();
+            synchronized (scripts) {
+                scripts.put(line, script);
+            }
+        }
+        return script;
+    }
+
+    /**
+     * Whether Groovy would return the line unchanged, because it contains nothing
+     * that has a meaning inside a double quoted string.
+     */
+    static boolean isPlain(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            switch (line.charAt(i)) {
+                case '$':
+                case '\\':
+                case '"':
+                case '\r':
+                    return false;
+            }
+        }
+        return true;
+    }
+}
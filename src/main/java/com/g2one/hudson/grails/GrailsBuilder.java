@@ -3,13 +3,13 @@ package com.g2one.hudson.grails;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPResult;
 import com.martiansoftware.jsap.UnflaggedOption;
-import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
 import hudson.*;
 import hudson.model.*;
 import hudson.tasks.Builder;
+import hudson.tools.ToolProperty;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.VariableResolver;
+import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -18,15 +18,20 @@ import org.kohsuke.stapler.StaplerRequest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class GrailsBuilder extends Builder {
+public class GrailsBuilder extends Builder implements SimpleBuildStep {
 
     private static final String JAVA_OPTS = "JAVA_OPTS";
     private static final String JENKINS_7702_TRIGGER = "-Djava.util.logging.manager=org.apache.juli.ClassLoaderLogManager";
 
+    private static final int DEFAULT_SERVER_PORT = 8080;
+    private static final ExpressionCache EXPRESSIONS = new ExpressionCache(ExpressionCache.DEFAULT_SIZE);
+
     private final String targets;
     private final String name;
     private String grailsWorkDir;
@@ -41,9 +46,23 @@ public class GrailsBuilder extends Builder {
     private Boolean stackTrace;
     private Boolean verbose;
     private Boolean refreshDependencies;
+    private Boolean sessionMode;
+    private Boolean parallelTargets;
+    private Boolean sharedDependencyCache;
+    private Boolean compileCache;
+    private String testShards;
+    private Boolean failFast;
+    private Boolean classDataSharing;
+    private Boolean wrapperCache;
+    private String expectedMemory;
+    private Boolean allocatePort;
 
-    @DataBoundConstructor
     public GrailsBuilder(String targets, String name, String grailsWorkDir, String projectWorkDir, String projectBaseDir, String serverPort, String properties, Boolean forceUpgrade, Boolean nonInteractive, Boolean useWrapper, Boolean plainOutput, Boolean stackTrace, Boolean verbose, Boolean refreshDependencies) {
+        this(targets, name, grailsWorkDir, projectWorkDir, projectBaseDir, serverPort, properties, forceUpgrade, nonInteractive, useWrapper, plainOutput, stackTrace, verbose, refreshDependencies, false, false, false, false, null, false, false, false, null, false);
+    }
+
+    @DataBoundConstructor
+    public GrailsBuilder(String targets, String name, String grailsWorkDir, String projectWorkDir, String projectBaseDir, String serverPort, String properties, Boolean forceUpgrade, Boolean nonInteractive, Boolean useWrapper, Boolean plainOutput, Boolean stackTrace, Boolean verbose, Boolean refreshDependencies, Boolean sessionMode, Boolean parallelTargets, Boolean sharedDependencyCache, Boolean compileCache, String testShards, Boolean failFast, Boolean classDataSharing, Boolean wrapperCache, String expectedMemory, Boolean allocatePort) {
         this.name = name;
         this.targets = targets;
         this.grailsWorkDir = grailsWorkDir;
@@ -53,11 +72,21 @@ public class GrailsBuilder extends Builder {
         this.properties = properties;
         this.forceUpgrade = forceUpgrade;
         this.nonInteractive = nonInteractive;
-        this.useWrapper = !useWrapper;
+        this.useWrapper = useWrapper != null && !useWrapper;
         this.plainOutput = plainOutput;
         this.stackTrace = stackTrace;
         this.verbose = verbose;
         this.refreshDependencies = refreshDependencies;
+        this.sessionMode = sessionMode;
+        this.parallelTargets = parallelTargets;
+        this.sharedDependencyCache = sharedDependencyCache;
+        this.compileCache = compileCache;
+        this.testShards = testShards;
+        this.failFast = failFast;
+        this.classDataSharing = classDataSharing;
+        this.wrapperCache = wrapperCache;
+        this.expectedMemory = expectedMemory;
+        this.allocatePort = allocatePort;
     }
 
     public boolean getNonInteractive() {
@@ -164,45 +193,191 @@ public class GrailsBuilder extends Builder {
         this.refreshDependencies = refreshDependencies;
     }
 
+    public Boolean getSessionMode() {
+        return sessionMode;
+    }
+
+    public void setSessionMode(Boolean sessionMode) {
+        this.sessionMode = sessionMode;
+    }
+
+    public Boolean getParallelTargets() {
+        return parallelTargets;
+    }
+
+    public void setParallelTargets(Boolean parallelTargets) {
+        this.parallelTargets = parallelTargets;
+    }
+
+    public Boolean getSharedDependencyCache() {
+        return sharedDependencyCache;
+    }
+
+    public void setSharedDependencyCache(Boolean sharedDependencyCache) {
+        this.sharedDependencyCache = sharedDependencyCache;
+    }
+
+    public Boolean getCompileCache() {
+        return compileCache;
+    }
+
+    public void setCompileCache(Boolean compileCache) {
+        this.compileCache = compileCache;
+    }
+
+    public String getTestShards() {
+        return testShards;
+    }
+
+    public void setTestShards(String testShards) {
+        this.testShards = testShards;
+    }
+
+    public Boolean getFailFast() {
+        return failFast;
+    }
+
+    public void setFailFast(Boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    public Boolean getClassDataSharing() {
+        return classDataSharing;
+    }
+
+    public void setClassDataSharing(Boolean classDataSharing) {
+        this.classDataSharing = classDataSharing;
+    }
+
+    public Boolean getWrapperCache() {
+        return wrapperCache;
+    }
+
+    public void setWrapperCache(Boolean wrapperCache) {
+        this.wrapperCache = wrapperCache;
+    }
+
+    public String getExpectedMemory() {
+        return expectedMemory;
+    }
+
+    public void setExpectedMemory(String expectedMemory) {
+        this.expectedMemory = expectedMemory;
+    }
+
+    public Boolean getAllocatePort() {
+        return allocatePort;
+    }
+
+    public void setAllocatePort(Boolean allocatePort) {
+        this.allocatePort = allocatePort;
+    }
+
     public GrailsInstallation getGrails() {
-        GrailsInstallation[] installations = Hudson.getInstance()
+        return Hudson.getInstance()
             .getDescriptorByType(GrailsInstallation.DescriptorImpl.class)
-            .getInstallations();
-        for (GrailsInstallation i : installations) {
-            if (name != null && i.getName().equals(name))
-                return i;
-        }
-        return null;
+            .getInstallation(name);
     }
 
     private Object readResolve() {
         // Default to false when loading old data to preserve previous behavior.
+        if (forceUpgrade == null) forceUpgrade = Boolean.FALSE;
         if (nonInteractive == null) nonInteractive = Boolean.FALSE;
         if (useWrapper == null) useWrapper = Boolean.FALSE;
+        if (sessionMode == null) sessionMode = Boolean.FALSE;
+        if (parallelTargets == null) parallelTargets = Boolean.FALSE;
+        if (sharedDependencyCache == null) sharedDependencyCache = Boolean.FALSE;
+        if (compileCache == null) compileCache = Boolean.FALSE;
+        if (failFast == null) failFast = Boolean.FALSE;
+        if (classDataSharing == null) classDataSharing = Boolean.FALSE;
+        if (wrapperCache == null) wrapperCache = Boolean.FALSE;
+        if (allocatePort == null) allocatePort = Boolean.FALSE;
         return this;
     }
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+        return perform(build, build.getWorkspace(), build.getModuleRoot(), Computer.currentComputer().getNode(), build.getBuildVariables(), launcher, listener);
+    }
+
+    /**
+     * Runs the targets in a build that isn't a freestyle build, such as a Pipeline <tt>step</tt>.
+     * The project is in the workspace, and there are no build variables.
+     *
+     * @throws AbortException if a target failed
+     */
+    public void perform(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        Node node = getNode(workspace);
+        if (node == null) {
+            throw new AbortException("The node of " + workspace + " is offline");
+        }
+        Map<String, String> buildVariables = build instanceof AbstractBuild
+                ? ((AbstractBuild<?, ?>) build).getBuildVariables()
+                : Collections.<String, String>emptyMap();
+        if (!perform(build, workspace, workspace, node, buildVariables, launcher, listener)) {
+            throw new AbortException("Grails targets failed");
+        }
+    }
+
+    /**
+     * Runs the targets of a build, whatever the kind of build.
+     *
+     * @param moduleRoot the directory the project base dir is relative to
+     * @param node       the node of the workspace
+     * @return false if a target failed for another reason than failing tests
+     */
+    boolean perform(Run<?, ?> build, FilePath workspace, FilePath moduleRoot, Node node, Map<String, String> buildVariables,
+                    Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
         readResolve();
         EnvVars env = build.getEnvironment(listener);
-        List<String[]> targetsToRun = getTargetsToRun(env);
+        TargetGraph graph;
+        try {
+            graph = getTargetGraph(env);
+        } catch (IllegalArgumentException e) {
+            listener.fatalError(e.getMessage());
+            return false;
+        }
+        List<String[]> targetsToRun = graph.getTargetsAndArgs();
+        FilePath basePath = getBasePath(moduleRoot);
      
         if (targetsToRun.size() > 0) {
             String execName;
             if (useWrapper) {
-                FilePath wrapper = new FilePath(getBasePath(build), launcher.isUnix() ? "grailsw" : "grailsw.bat");
+                FilePath wrapper = new FilePath(basePath, launcher.isUnix() ? "grailsw" : "grailsw.bat");
                 execName = wrapper.getRemote();
             } else {
                 execName = launcher.isUnix() ? "grails" : "grails.bat";
             }
 
 
-            GrailsInstallation grailsInstallation = useWrapper ? null : getGrails();
+            GrailsInstallation configured = useWrapper ? null : getGrails();
+            GrailsInstallation grailsInstallation = configured;
+
+            if (configured != null) {
+                grailsInstallation = GrailsInstallationCache.resolve(configured, env, node, listener);
+            } else if (useWrapper && wrapperCache) {
+                // run the distribution of the wrapper from the cache of the node, as grailsw would
+                FilePath wrapperHome = GrailsWrapperCache.forNode(node).resolve(basePath, listener);
+                if (wrapperHome == null) {
+                    listener.getLogger().println("The wrapper cache is not used, application.properties doesn't declare app.grails.version");
+                } else {
+                    grailsInstallation = new GrailsInstallation("grailsw", wrapperHome.getRemote(), Collections.<ToolProperty<?>>emptyList());
+                    execName = launcher.isUnix() ? "grails" : "grails.bat";
+                }
+            }
+
+            String executable = getExecutable(launcher, execName, grailsInstallation);
+            PreparedLaunch prepared = PreparedLaunch.prepare(workspace, basePath, executable);
+            if (configured != null && !prepared.isExecutableFound()) {
+                // deleted since it was resolved, the installers put it back
+                listener.getLogger().println(configured.getName() + " is no longer installed on " + node.getDisplayName());
+                GrailsInstallationCache.invalidate(configured, env, node, grailsInstallation);
+                grailsInstallation = GrailsInstallationCache.resolve(configured, env, node, listener);
+                executable = getExecutable(launcher, execName, grailsInstallation);
+                prepared = PreparedLaunch.prepare(workspace, basePath, executable);
+            }
 
             if (grailsInstallation != null) {
-                grailsInstallation = grailsInstallation.forEnvironment(env)
-                    .forNode(Computer.currentComputer().getNode(), listener);
                 env.put("GRAILS_HOME", grailsInstallation.getHome());
 
                 String path = env.get("PATH");
@@ -216,76 +391,543 @@ public class GrailsBuilder extends Builder {
                 env.put(JAVA_OPTS, jopts.replace(JENKINS_7702_TRIGGER, "")); // leading/trailing spaces should be harmless
             }
 
-            for (String[] targetsAndArgs : targetsToRun) {
+            GrailsClassDataSharing cds = null;
+            GrailsClassDataSharing.Archive archive = null;
+            if (classDataSharing && grailsInstallation != null) {
+                String javaHome = env.get("JAVA_HOME");
+                if (javaHome == null) {
+                    listener.getLogger().println("Class data sharing is not used without a JDK");
+                } else {
+                    // the JVMs of targets running at the same time would write the same archive
+                    boolean dump = !(parallelTargets && targetsToRun.size() > 1) && getTestShardCount(env) <= 1;
+                    cds = GrailsClassDataSharing.forNode(node);
+                    archive = cds.prepare(grailsInstallation.getHome(), javaHome, dump);
+                    if (archive == null) {
+                        listener.getLogger().println("Class data sharing is not used, it needs Java " + GrailsClassDataSharing.MIN_JAVA_VERSION + " or later and targets not running at the same time the first time");
+                    } else {
+                        listener.getLogger().println(archive.getPending() == null
+                                ? "Using the class data sharing archive " + archive.getPath()
+                                : "Creating the class data sharing archive " + archive.getPath());
+                        jopts = env.get(JAVA_OPTS);
+                        env.put(JAVA_OPTS, jopts == null ? archive.getJavaOpts() : jopts + " " + archive.getJavaOpts());
+                    }
+                }
+            }
+
+            boolean committed = false;
+            try {
+                GrailsExecutionPlan plan = createPlan(buildVariables, listener, env, prepared, executable != null ? executable : execName);
+                if (plan == null) {
+                    return false;
+                }
 
-                String target = targetsAndArgs[0];
-                ArgumentListBuilder args = new ArgumentListBuilder();
+                GrailsDependencyCache dependencyCache = null;
+                FilePath ivyCache = null;
+                if (sharedDependencyCache) {
+                    dependencyCache = GrailsDependencyCache.forNode(node);
+                    ivyCache = new FilePath(launcher.getChannel(), plan.getSystemProperties().get("grails.work.dir")).child(GrailsDependencyCache.IVY_CACHE);
+                    dependencyCache.link(ivyCache, listener);
+                }
 
-                if (grailsInstallation == null) {
-                    args.add(execName);
-                } else {
-                    FilePath exec = new FilePath(launcher.getChannel(), grailsInstallation.getHome()).child("bin").child(execName);
-                    if (!exec.exists()) {
-                        listener.fatalError(exec + " doesn't exist");
-                        return false;
+                GrailsCompileCache classesCache = null;
+                FilePath workDir = null;
+                String grailsVersion = grailsInstallation == null ? "wrapper" : grailsInstallation.getHome();
+                if (compileCache) {
+                    if (parallelTargets && targetsToRun.size() > 1) {
+                        listener.getLogger().println("The compile cache is not used when the targets run in parallel");
+                    } else if (getTestShardCount(env) > 1) {
+                        // each shard compiles into its own work dir, the one cached would be stored out of date
+                        listener.getLogger().println("The compile cache is not used when the tests run in shards");
+                    } else {
+                        workDir = getProjectWorkDir(basePath, plan, prepared);
+                        if (workDir == null) {
+                            listener.getLogger().println("The compile cache is not used, the project work dir can't be worked out: "
+                                    + "set grails.project.work.dir, or app.name in application.properties");
+                        } else {
+                            classesCache = GrailsCompileCache.forNode(node);
+                            classesCache.restore(basePath, workDir, grailsVersion, listener);
+                        }
                     }
-                    args.add(exec.getRemote());
                 }
-                args.addKeyValuePairs("-D", build.getBuildVariables());
-                Map systemProperties = new HashMap();
-                if (grailsWorkDir != null && !"".equals(grailsWorkDir.trim())) {
-                    systemProperties.put("grails.work.dir", eval(env, grailsWorkDir));
-                } else {
-                    systemProperties.put("grails.work.dir", build.getWorkspace().toURI().getPath() + "/target");
+
+                int memory = getExpectedMemory(env);
+                if (memory < 1) {
+                    listener.fatalError("Invalid expected memory: " + expectedMemory);
+                    return false;
+                }
+                GrailsMemoryBudget.Admission admission = GrailsMemoryBudget.forNode(node).admission(memory);
+                GrailsPortAllocator ports = allocatePort ? GrailsPortAllocator.forNode(node, launcher.getChannel()) : null;
+
+                boolean success = runTargets(build, basePath, launcher, listener, env, plan, admission, ports, graph);
+                if (success && dependencyCache != null) {
+                    dependencyCache.harvest(ivyCache, listener);
                 }
-                if (projectWorkDir != null && !"".equals(projectWorkDir.trim())) {
-                    systemProperties.put("grails.project.work.dir", eval(env, projectWorkDir));
+                if (success && classesCache != null) {
+                    classesCache.store(basePath, workDir, grailsVersion, listener);
                 }
-                if (serverPort != null && !"".equals(serverPort.trim())) {
-                    systemProperties.put("server.port", eval(env, serverPort));
+                if (success && archive != null) {
+                    cds.commit(archive);
+                    committed = true;
                 }
-                if (systemProperties.size() > 0) {
-                    args.addKeyValuePairs("-D", systemProperties);
+                return success;
+            } finally {
+                if (archive != null && !committed) {
+                    // an archive made by a failed build isn't used, and would stay there
+                    cds.discard(archive);
                 }
-                args.addKeyValuePairsFromPropertyString("-D", eval(env, properties), build.getBuildVariableResolver());
+            }
+        } else {
+            listener.getLogger().println("Error: No Targets To Run!");
+            return false;
+        }
+    }
 
-                args.add(target);
-                addArgument("--non-interactive", nonInteractive, args, env, targetsAndArgs);
-                addArgument("--plain-output", plainOutput, args, env, targetsAndArgs);
-                addArgument("--stacktrace", stackTrace, args, env, targetsAndArgs);
-                addArgument("--verbose", verbose, args, env, targetsAndArgs);
-                addArgument("--refresh-dependencies", refreshDependencies, args, env, targetsAndArgs);
+    private boolean runTargets(Run<?, ?> build, FilePath basePath, Launcher launcher, TaskListener listener, EnvVars env,
+                               GrailsExecutionPlan plan, GrailsMemoryBudget.Admission admission, GrailsPortAllocator ports, TargetGraph graph) throws IOException, InterruptedException {
+        // unless they run in parallel, in an order in which the dependencies come first
+        List<String[]> targetsToRun = graph.getTargetsAndArgs();
+        if (parallelTargets && targetsToRun.size() > 1) {
+            return performParallel(build, basePath, launcher, listener, env, plan, admission, ports, graph);
+        }
 
+        if (sessionMode && targetsToRun.size() > 1) {
+            int port = ports != null ? ports.lease() : -1;
+            try {
+                ArgumentListBuilder args = plan.sessionCommand(port < 0 ? plan.getSystemProperties() : withServerPort(plan.getSystemProperties(), port));
+                List<String> commands = new ArrayList<String>();
+                for (String[] targetsAndArgs : targetsToRun) {
+                    ArgumentListBuilder command = new ArgumentListBuilder();
+                    plan.addTarget(command, targetsAndArgs);
+                    commands.add(GrailsSession.commandLine(command.toList()));
+                }
                 if (!launcher.isUnix()) {
                     args = args.toWindowsCommand();
                 }
+                GrailsConsoleAnnotator gca = newAnnotator(build, listener);
+                return new GrailsSession(build, launcher, listener).run(gca, args, withServerPort(env, port), basePath, commands, admission);
+            } finally {
+                if (port >= 0) {
+                    ports.release(port);
+                }
+            }
+        }
+
+        int shards = getTestShardCount(env);
+        if (shards < 1) {
+            listener.fatalError("Invalid number of test shards: " + testShards);
+            return false;
+        }
+
+        for (String[] targetsAndArgs : targetsToRun) {
+
+            if (failFast && TestSharding.isShardable(targetsAndArgs)) {
+                Result result = performFailFast(build, basePath, launcher, listener, env, plan, admission, ports, targetsAndArgs);
+                if (result == Result.FAILURE) {
+                    return false;
+                } else if (result == Result.UNSTABLE) {
+                    build.setResult(Result.UNSTABLE);
+                    listener.getLogger().println("Tests failed again, skipping the remaining tests of " + targetsAndArgs[0]);
+                    continue;
+                }
+            }
 
-                GrailsConsoleAnnotator gca = new GrailsConsoleAnnotator(listener.getLogger(), build.getCharset());
-                new GrailsTaskNote(target).encodeTo(listener.getLogger());
-                try {
-                    int r = launcher.launch().cmds(args).envs(env).stdout(gca).pwd(getBasePath(build)).join();
-                    if (r != 0) {
-                        if (gca.isBuildFailingDueToFailingTests()) {
-                            build.setResult(Result.UNSTABLE);
-                        } else {
-                            return false;
-                        }
+            if (shards > 1 && TestSharding.isShardable(targetsAndArgs)) {
+                Boolean success = performSharded(build, basePath, launcher, listener, env, plan, admission, ports, targetsAndArgs, shards);
+                if (success != null) {
+                    if (!success) {
+                        return false;
                     }
-                } catch (IOException e) {
-                    Util.displayIOException(e, listener);
-                    e.printStackTrace(listener.fatalError("command execution failed"));
-                    return false;
-                } finally {
-                    gca.forceEol();
+                    continue;
                 }
             }
-        } else {
-            listener.getLogger().println("Error: No Targets To Run!");
-            return false;
+
+            Result result = runTarget(build, basePath, launcher, listener, env, plan, admission, ports, targetsAndArgs);
+            if (result == Result.UNSTABLE) {
+                build.setResult(Result.UNSTABLE);
+            } else if (result != Result.SUCCESS) {
+                return false;
+            }
         }
         return true;
     }
 
+    /**
+     * Runs a single target as a separate process.
+     *
+     * @return SUCCESS, UNSTABLE if tests failed, or FAILURE
+     */
+    private Result runTarget(Run<?, ?> build, FilePath basePath, Launcher launcher, TaskListener listener, EnvVars env,
+                             GrailsExecutionPlan plan, GrailsMemoryBudget.Admission admission, GrailsPortAllocator ports, String[] targetsAndArgs) throws IOException, InterruptedException {
+        int port = ports != null ? ports.lease() : -1;
+        try {
+            return runTarget(build, basePath, launcher, listener, env, plan, admission, port, targetsAndArgs);
+        } finally {
+            if (port >= 0) {
+                ports.release(port);
+            }
+        }
+    }
+
+    /**
+     * @param port the server port leased for the target, or -1
+     */
+    private Result runTarget(Run<?, ?> build, FilePath basePath, Launcher launcher, TaskListener listener, EnvVars env,
+                             GrailsExecutionPlan plan, GrailsMemoryBudget.Admission admission, int port, String[] targetsAndArgs) throws IOException, InterruptedException {
+        String target = targetsAndArgs[0];
+        ArgumentListBuilder args = port < 0 ? plan.command() : plan.command(withServerPort(plan.getSystemProperties(), port));
+        plan.addTarget(args, targetsAndArgs);
+
+        if (!launcher.isUnix()) {
+            args = args.toWindowsCommand();
+        }
+
+        GrailsConsoleAnnotator gca = newAnnotator(build, listener);
+        GrailsTargetMonitor monitor = new GrailsTargetMonitor(launcher.getChannel(), withServerPort(env, port));
+        long logStart = GrailsTargetsAction.logOffset(build, listener.getLogger());
+        new GrailsTaskNote(target).encodeTo(listener.getLogger());
+        Result result = Result.FAILURE;
+        long queueTime = admission.enter(listener);
+        monitor.start();
+        try {
+            int r = launcher.launch().cmds(args).envs(monitor.getEnvironment()).stdout(gca).pwd(basePath).join();
+            if (r != 0) {
+                result = gca.isBuildFailingDueToFailingTests() ? Result.UNSTABLE : Result.FAILURE;
+            } else {
+                result = Result.SUCCESS;
+            }
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError("command execution failed"));
+        } finally {
+            monitor.stop();
+            admission.exit();
+            gca.forceEol();
+            gca.endTarget();
+        }
+        GrailsTargetMetrics metrics = monitor.split(target, result);
+        metrics.setQueueTime(queueTime);
+        GrailsMetricsNote.print(listener.getLogger(), metrics);
+        metrics.setLogRange(logStart, GrailsTargetsAction.logOffset(build, listener.getLogger()));
+        GrailsTargetsAction.record(build, metrics);
+        return result;
+    }
+
+    /**
+     * Runs the tests that failed in the last build and those affected by the changes of this build,
+     * before all the tests of a <tt>test-app</tt> target.
+     *
+     * @return the result of these tests, SUCCESS if there are none
+     */
+    private Result performFailFast(Run<?, ?> build, FilePath basePath, Launcher launcher, TaskListener listener, EnvVars env,
+                                   GrailsExecutionPlan plan, GrailsMemoryBudget.Admission admission, GrailsPortAllocator ports, String[] targetAndArgs) throws IOException, InterruptedException {
+        List<String> tests = TestPrioritizer.prioritize(build, TestSharding.findTests(basePath));
+        if (tests.isEmpty()) {
+            return Result.SUCCESS;
+        }
+        listener.getLogger().println("Running " + tests.size() + " tests that failed before or changed first");
+        List<String> firstTarget = new ArrayList<String>(Arrays.asList(targetAndArgs));
+        firstTarget.addAll(tests);
+        return runTarget(build, basePath, launcher, listener, env, plan, admission, ports, firstTarget.toArray(new String[firstTarget.size()]));
+    }
+
+    /**
+     * Runs the targets as separate processes, concurrently as far as the dependencies declared between them allow.
+     * Every process gets its own <tt>grails.project.work.dir</tt>.
+     */
+    private boolean performParallel(Run<?, ?> build, FilePath basePath, Launcher launcher, TaskListener listener, EnvVars env,
+                                    GrailsExecutionPlan plan, GrailsMemoryBudget.Admission admission, GrailsPortAllocator ports, TargetGraph graph) throws IOException, InterruptedException {
+        Map<String, String> systemProperties = plan.getSystemProperties();
+        String workDir = systemProperties.containsKey("grails.project.work.dir")
+                ? systemProperties.get("grails.project.work.dir")
+                : systemProperties.get("grails.work.dir") + "/parallel";
+        ArgumentListBuilder[] commands = new ArgumentListBuilder[graph.getTargets().size()];
+        Integer[] serverPorts = new Integer[graph.getTargets().size()];
+        boolean leased = false;
+        try {
+            for (TargetGraph.Target target : graph.getTargets()) {
+                Map<String, String> targetProperties = new HashMap<String, String>(systemProperties);
+                targetProperties.put("grails.project.work.dir", workDir + "/" + target.getIndex() + "-" + target.getName());
+                if (ports != null) {
+                    serverPorts[target.getIndex()] = ports.lease();
+                    targetProperties.put("server.port", String.valueOf(serverPorts[target.getIndex()]));
+                }
+                ArgumentListBuilder args = plan.command(targetProperties);
+                plan.addTarget(args, target.getTargetAndArgs());
+                commands[target.getIndex()] = launcher.isUnix() ? args : args.toWindowsCommand();
+            }
+            leased = true;
+        } finally {
+            if (!leased) {
+                release(ports, serverPorts);
+            }
+        }
+        // the runner releases the ports as the targets end
+        Result result = new GrailsParallelRunner(build, launcher, listener, env, basePath, GrailsOutputPattern.all(), getEventsAction(build), admission, ports)
+                .run(graph, Arrays.asList(commands), ports != null ? Arrays.asList(serverPorts) : null);
+        if (result == Result.UNSTABLE) {
+            build.setResult(Result.UNSTABLE);
+        }
+        return !result.isWorseThan(Result.UNSTABLE);
+    }
+
+    /**
+     * Runs the tests of a <tt>test-app</tt> target as concurrent processes, each with its own
+     * <tt>grails.project.work.dir</tt>, test reports directory and server port. The reports of
+     * all shards are copied into the test reports directory of the project at the end.
+     *
+     * @return null if there are too few tests to split
+     */
+    private Boolean performSharded(Run<?, ?> build, FilePath basePath, Launcher launcher, TaskListener listener, EnvVars env,
+                                   GrailsExecutionPlan plan, GrailsMemoryBudget.Admission admission, GrailsPortAllocator ports, String[] targetAndArgs, int count) throws IOException, InterruptedException {
+        List<String> tests = TestSharding.findTests(basePath);
+        if (tests.size() < 2) {
+            return null;
+        }
+        List<List<String>> shards = TestSharding.split(tests, TestSharding.getDurations(build), count);
+        listener.getLogger().println("Running " + tests.size() + " tests in " + shards.size() + " shards");
+
+        Map<String, String> systemProperties = plan.getSystemProperties();
+        String workDir = systemProperties.containsKey("grails.project.work.dir")
+                ? systemProperties.get("grails.project.work.dir")
+                : systemProperties.get("grails.work.dir") + "/shards";
+        FilePath reportsDir = basePath.child("target").child("test-reports");
+        int port = DEFAULT_SERVER_PORT;
+        if (ports == null && systemProperties.containsKey("server.port")) {
+            try {
+                port = Integer.parseInt(systemProperties.get("server.port"));
+            } catch (NumberFormatException e) {
+                listener.fatalError("Can't give each test shard its own port, the server port isn't a number: " + systemProperties.get("server.port"));
+                return false;
+            }
+        }
+
+        List<String[]> shardTargets = new ArrayList<String[]>();
+        ArgumentListBuilder[] commands = new ArgumentListBuilder[shards.size()];
+        Integer[] serverPorts = new Integer[shards.size()];
+        boolean leased = false;
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                List<String> shardTarget = new ArrayList<String>(Arrays.asList(targetAndArgs));
+                shardTarget.addAll(shards.get(i));
+                shardTargets.add(shardTarget.toArray(new String[shardTarget.size()]));
+
+                serverPorts[i] = ports != null ? ports.lease() : port + i;
+                Map<String, String> shardProperties = new HashMap<String, String>(systemProperties);
+                shardProperties.put("grails.project.work.dir", workDir + "/shard-" + i);
+                shardProperties.put("grails.project.test.reports.dir", reportsDir.child("shard-" + i).getRemote());
+                shardProperties.put("server.port", String.valueOf(serverPorts[i]));
+                ArgumentListBuilder args = plan.command(shardProperties);
+                plan.addTarget(args, shardTargets.get(i));
+                commands[i] = launcher.isUnix() ? args : args.toWindowsCommand();
+            }
+            leased = true;
+        } finally {
+            if (!leased) {
+                release(ports, serverPorts);
+            }
+        }
+        // the runner releases the ports as the shards end
+        Result result = new GrailsParallelRunner(build, launcher, listener, env, basePath, GrailsOutputPattern.all(), getEventsAction(build), admission, ports)
+                .run(TargetGraph.shards(shardTargets), Arrays.asList(commands), ports != null ? Arrays.asList(serverPorts) : null);
+        for (int i = 0; i < shards.size(); i++) {
+            FilePath shardReports = reportsDir.child("shard-" + i);
+            if (shardReports.exists()) {
+                shardReports.copyRecursiveTo("TEST-*.xml", reportsDir);
+            }
+        }
+        if (result == Result.UNSTABLE) {
+            build.setResult(Result.UNSTABLE);
+        }
+        return !result.isWorseThan(Result.UNSTABLE);
+    }
+
+    private static Map<String, String> withServerPort(Map<String, String> systemProperties, int port) {
+        Map<String, String> properties = new HashMap<String, String>(systemProperties);
+        properties.put("server.port", String.valueOf(port));
+        return properties;
+    }
+
+    /**
+     * The environment of a process, with the server port leased for it if there is one.
+     */
+    private static EnvVars withServerPort(EnvVars env, int port) {
+        if (port < 0) {
+            return env;
+        }
+        EnvVars portEnv = new EnvVars(env);
+        portEnv.put(GrailsPortAllocator.ENV_VAR, String.valueOf(port));
+        return portEnv;
+    }
+
+    /**
+     * Releases the server ports leased for processes that won't start, as leasing the others failed.
+     */
+    private static void release(GrailsPortAllocator ports, Integer[] serverPorts) {
+        if (ports != null) {
+            for (Integer port : serverPorts) {
+                if (port != null) {
+                    ports.release(port);
+                }
+            }
+        }
+    }
+
+    /**
+     * The memory each Grails process is expected to use, in megabytes: the expected memory if it is set,
+     * otherwise the maximum heap size of <tt>$GRAILS_OPTS</tt> or <tt>$JAVA_OPTS</tt>, or 0 if the expected memory isn't a number.
+     */
+    private int getExpectedMemory(EnvVars env) {
+        if (expectedMemory != null && !"".equals(expectedMemory.trim())) {
+            try {
+                return Integer.parseInt(eval(env, expectedMemory));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        int maxHeap = GrailsMemoryBudget.parseMaxHeap(env.get("GRAILS_OPTS"));
+        if (maxHeap < 0) {
+            maxHeap = GrailsMemoryBudget.parseMaxHeap(env.get(JAVA_OPTS));
+        }
+        return maxHeap > 0 ? maxHeap : GrailsMemoryBudget.DEFAULT_EXPECTED_MEMORY;
+    }
+
+    private int getTestShardCount(EnvVars env) {
+        if (testShards == null || "".equals(testShards.trim())) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(eval(env, testShards));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The node a workspace is on, or null if it is offline.
+     */
+    private static Node getNode(FilePath workspace) {
+        if (!workspace.isRemote()) {
+            return Hudson.getInstance();
+        }
+        for (Computer computer : Hudson.getInstance().getComputers()) {
+            if (computer.getChannel() == workspace.getChannel()) {
+                return computer.getNode();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Action getProjectAction(AbstractProject<?, ?> project) {
+        return new GrailsTargetsProjectAction(project);
+    }
+
+    private GrailsEventsAction getEventsAction(Run<?, ?> build) {
+        synchronized (build) {
+            GrailsEventsAction events = build.getAction(GrailsEventsAction.class);
+            if (events == null) {
+                events = new GrailsEventsAction();
+                build.addAction(events);
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Creates the annotator following the output of a target, which records the events it finds on the build.
+     */
+    private GrailsConsoleAnnotator newAnnotator(Run<?, ?> build, TaskListener listener) {
+        return new GrailsConsoleAnnotator(listener.getLogger(), build.getCharset(), GrailsOutputPattern.all(), getEventsAction(build));
+    }
+
+    /**
+     * The system properties passed to every target.
+     */
+    private Map<String, String> getSystemProperties(EnvVars env, PreparedLaunch prepared) {
+        Map<String, String> systemProperties = new HashMap<String, String>();
+        if (grailsWorkDir != null && !"".equals(grailsWorkDir.trim())) {
+            systemProperties.put("grails.work.dir", eval(env, grailsWorkDir));
+        } else {
+            systemProperties.put("grails.work.dir", prepared.getWorkspacePath() + "/target");
+        }
+        if (projectWorkDir != null && !"".equals(projectWorkDir.trim())) {
+            systemProperties.put("grails.project.work.dir", eval(env, projectWorkDir));
+        }
+        if (serverPort != null && !"".equals(serverPort.trim())) {
+            systemProperties.put("server.port", eval(env, serverPort));
+        }
+        return systemProperties;
+    }
+
+    /**
+     * Where Grails puts the compiled classes of the project: the <tt>grails.project.work.dir</tt> passed
+     * with <tt>-D</tt>, the <tt>build</tt> directory of Gradle based projects, and otherwise the
+     * <tt>grails.project.work.dir</tt> of <tt>BuildConfig.groovy</tt> or
+     * <tt>grails.work.dir/projects/&lt;app.name&gt;</tt>, see {@link GrailsCompileCache#findProjectWorkDir}.
+     *
+     * @return the project work dir, or null if it can't be worked out
+     */
+    private FilePath getProjectWorkDir(FilePath basePath, GrailsExecutionPlan plan, PreparedLaunch prepared) throws IOException, InterruptedException {
+        String projectWorkDir = plan.getSystemProperty("grails.project.work.dir");
+        if (projectWorkDir != null) {
+            return new FilePath(basePath, projectWorkDir);
+        }
+        if (prepared.isGradleProject()) {
+            return basePath.child("build");
+        }
+        return GrailsCompileCache.findProjectWorkDir(basePath, plan.getSystemProperty("grails.work.dir"));
+    }
+
+    /**
+     * Works out what the command lines of all targets have in common: the Grails executable,
+     * the build variables, the system properties, the properties and the enabled options.
+     *
+     * @return the plan, or null if the Grails executable could not be found
+     */
+    private GrailsExecutionPlan createPlan(Map<String, String> buildVariables, TaskListener listener, EnvVars env, PreparedLaunch prepared, String exec) {
+        ArgumentListBuilder head = new ArgumentListBuilder();
+        if (!prepared.isExecutableFound()) {
+            listener.fatalError(exec + " doesn't exist");
+            return null;
+        }
+        head.add(exec);
+        head.addKeyValuePairs("-D", buildVariables);
+
+        ArgumentListBuilder tail = new ArgumentListBuilder();
+        tail.addKeyValuePairsFromPropertyString("-D", eval(env, properties), new VariableResolver.ByMap<String>(buildVariables));
+
+        List<String> options = new ArrayList<String>();
+        addOption(options, "--non-interactive", nonInteractive);
+        addOption(options, "--plain-output", plainOutput);
+        addOption(options, "--stacktrace", stackTrace);
+        addOption(options, "--verbose", verbose);
+        addOption(options, "--refresh-dependencies", refreshDependencies);
+
+        return new GrailsExecutionPlan(head.toList(), getSystemProperties(env, prepared), tail.toList(), options, env);
+    }
+
+    /**
+     * The path of the Grails executable of an installation, or null if there is no installation
+     * and the executable is the wrapper or found on the <tt>PATH</tt>.
+     */
+    private static String getExecutable(Launcher launcher, String execName, GrailsInstallation grailsInstallation) {
+        if (grailsInstallation == null) {
+            return null;
+        }
+        return new FilePath(launcher.getChannel(), grailsInstallation.getHome()).child("bin").child(execName).getRemote();
+    }
+
+    private static void addOption(List<String> options, String option, Boolean enabled) {
+        if (enabled != null && enabled) {
+            options.add(option);
+        }
+    }
+
+    /**
+     * Appends the arguments of a target, and an option if it is enabled and not one of them.
+     * The command lines of the build are made by {@link GrailsExecutionPlan#addTarget}, which
+     * does the same for all the options at once.
+     */
     protected void addArgument(String option, Boolean optionEnabled, ArgumentListBuilder args, EnvVars env, String[] targetsAndArgs) {
         boolean foundArgument = false;
         for (int i = 1; i < targetsAndArgs.length; i++) {
@@ -302,9 +944,8 @@ public class GrailsBuilder extends Builder {
         }
     }
 
-    private FilePath getBasePath(AbstractBuild<?, ?> build) {
+    private FilePath getBasePath(FilePath moduleRoot) {
         FilePath basePath;
-        FilePath moduleRoot = build.getModuleRoot();
         if (projectBaseDir != null && !"".equals(projectBaseDir.trim())) {
             basePath = new FilePath(moduleRoot, projectBaseDir);
         } else {
@@ -330,21 +971,27 @@ public class GrailsBuilder extends Builder {
         }
         for (String s : target.split("\r?\n")) {
             s = Util.replaceMacro(s, new VariableResolver.ByMap<String>(env));
-            Binding binding = new Binding();
-            binding.setVariable("env", env);
-            binding.setVariable("sys", System.getProperties());
-            GroovyShell shell = new GroovyShell(binding);
-            Object value = shell.evaluate("return \"" + s + "\"");
-            if (value == null) {
-                result.add(s);
-            } else {
-                result.add(value.toString().trim());
-            }
+            result.add(EXPRESSIONS.evaluate(s, env));
         }
         return StringUtils.join(result, "\n");
     }
 
+    /**
+     * The targets with their arguments, in an order in which every target comes after the ones it
+     * depends on, without the dependencies declared with {@value TargetGraph#DEPENDS_ON}.
+     *
+     * @throws IllegalArgumentException if a dependency is unknown or the dependencies form a cycle
+     */
     protected List<String[]> getTargetsToRun(EnvVars env) {
+        return getTargetGraph(env).getTargetsAndArgs();
+    }
+
+    /**
+     * The targets with the dependencies declared between them.
+     *
+     * @throws IllegalArgumentException if a dependency is unknown or the dependencies form a cycle
+     */
+    TargetGraph getTargetGraph(EnvVars env) {
         List<String[]> targetsToRun = new ArrayList<String[]>();
         if(forceUpgrade) {
             targetsToRun.add(new String[]{"upgrade", "--non-interactive"});
@@ -366,7 +1013,7 @@ public class GrailsBuilder extends Builder {
                 e.printStackTrace();
             }
         }
-        return targetsToRun;
+        return TargetGraph.parse(targetsToRun, forceUpgrade);
     }
 
     @Extension
@@ -0,0 +1,248 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class data sharing archives of the classes Grails loads, one per Grails installation and JDK
+ * on each node, so that the JVM of every target maps them instead of loading and verifying
+ * them again.
+ *
+ * The archives are kept in <tt>grails-cache/cds</tt> below the root directory of the node, in a
+ * directory per installation and JDK, named by the fingerprint of both: the names, sizes and
+ * dates of the jars of the installation and the <tt>release</tt> file of the JDK. When either
+ * changes, the fingerprint changes, the old archive is deleted and a new one is made.
+ *
+ * An archive is made by the JVM when it exits, with <tt>-XX:ArchiveClassesAtExit</tt>, which
+ * needs Java 13 or later. It is written to a temporary file and only used by later builds once
+ * the build making it succeeded, otherwise it is deleted. The temporary files left behind by
+ * builds that didn't get to delete them are deleted a day later.
+ */
+final class GrailsClassDataSharing {
+
+    static final int MIN_JAVA_VERSION = 13;
+
+    /**
+     * How old a temporary archive is when it is deleted as left behind.
+     */
+    static final long STALE_AGE = 24L * 60 * 60 * 1000;
+
+    private static final String PENDING = ".tmp";
+
+    private static final Pattern JAVA_VERSION = Pattern.compile("JAVA_VERSION=\"(\\d+)(?:\\.(\\d+))?");
+
+    private final FilePath root;
+
+    GrailsClassDataSharing(FilePath root) {
+        this.root = root;
+    }
+
+    static GrailsClassDataSharing forNode(Node node) throws IOException {
+        return new GrailsClassDataSharing(CacheLock.getCacheRoot(node).child("cds"));
+    }
+
+    /**
+     * @param dump whether the archive may be made by this build, if there is none
+     * @return the archive for an installation and a JDK, or null if class data sharing can't be used
+     */
+    Archive prepare(String grailsHome, String javaHome, boolean dump) throws IOException, InterruptedException {
+        return root.act(new Prepare(grailsHome, javaHome, dump));
+    }
+
+    /**
+     * Makes an archive made by a build available to the next builds.
+     */
+    void commit(Archive archive) throws IOException, InterruptedException {
+        if (archive.getPending() != null) {
+            root.act(new Commit(archive));
+        }
+    }
+
+    /**
+     * Deletes an archive made by a build that didn't succeed.
+     */
+    void discard(Archive archive) throws IOException, InterruptedException {
+        if (archive.getPending() != null) {
+            new FilePath(root.getChannel(), archive.getPending()).delete();
+        }
+    }
+
+    /**
+     * An archive to use, or to make.
+     */
+    static final class Archive implements Serializable {
+
+        private final String path;
+        private final String pending;
+
+        Archive(String path, String pending) {
+            this.path = path;
+            this.pending = pending;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * Where the archive being made is written to, or null if the archive exists.
+         */
+        String getPending() {
+            return pending;
+        }
+
+        /**
+         * The options of the JVM.
+         */
+        String getJavaOpts() {
+            return pending == null
+                    ? "-XX:SharedArchiveFile=" + path + " -Xshare:auto"
+                    : "-XX:ArchiveClassesAtExit=" + pending;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Prepare implements FilePath.FileCallable<Archive>, Serializable {
+
+        private final String grailsHome;
+        private final String javaHome;
+        private final boolean dump;
+
+        Prepare(String grailsHome, String javaHome, boolean dump) {
+            this.grailsHome = grailsHome;
+            this.javaHome = javaHome;
+            this.dump = dump;
+        }
+
+        public Archive invoke(File root, VirtualChannel channel) throws IOException {
+            File release = new File(javaHome, "release");
+            if (!release.exists() || javaVersion(FileUtils.readFileToString(release)) < MIN_JAVA_VERSION) {
+                return null;
+            }
+            File dir = new File(root, Util.getDigestOf(new File(grailsHome).getAbsolutePath() + "\n" + new File(javaHome).getAbsolutePath()));
+            String fingerprint = Util.getDigestOf(fingerprint(new File(grailsHome, "lib")) + FileUtils.readFileToString(release));
+            File archive = new File(dir, fingerprint + ".jsa");
+            if (archive.exists()) {
+                return new Archive(archive.getPath(), null);
+            }
+            if (!dump) {
+                return null;
+            }
+            deleteStale(root, System.currentTimeMillis() - STALE_AGE);
+            if (!dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            return new Archive(archive.getPath(), new File(dir, fingerprint + "." + UUID.randomUUID() + PENDING).getPath());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Commit implements FilePath.FileCallable<Void>, Serializable {
+
+        private final Archive archive;
+
+        Commit(Archive archive) {
+            this.archive = archive;
+        }
+
+        public Void invoke(File root, VirtualChannel channel) throws IOException {
+            File pending = new File(archive.getPending());
+            File file = new File(archive.getPath());
+            if (!pending.exists()) {
+                // the JVM couldn't make it
+                return null;
+            }
+            if (pending.length() == 0 || !pending.renameTo(file)) {
+                pending.delete();
+                return null;
+            }
+            // the archives of earlier installations and JDKs
+            File[] files = file.getParentFile().listFiles();
+            if (files != null) {
+                for (File other : files) {
+                    if (!other.equals(file) && other.getName().endsWith(".jsa")) {
+                        other.delete();
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Deletes the temporary archives last written before a time, left behind by builds that
+     * were killed. The others may still be committed by the builds making them.
+     *
+     * @return the number of archives deleted
+     */
+    static int deleteStale(File root, long before) {
+        int deleted = 0;
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return 0;
+        }
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.getName().endsWith(PENDING) && file.lastModified() < before && file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * The major version of Java from the content of the <tt>release</tt> file of a JDK, or -1 if unknown.
+     */
+    static int javaVersion(String release) {
+        Matcher m = JAVA_VERSION.matcher(release);
+        if (!m.find()) {
+            return -1;
+        }
+        int major = Integer.parseInt(m.group(1));
+        if (major == 1 && m.group(2) != null) {
+            // 1.8.0_292
+            return Integer.parseInt(m.group(2));
+        }
+        return major;
+    }
+
+    /**
+     * The names, sizes and dates of the jars in a directory and below.
+     */
+    static String fingerprint(File dir) {
+        StringBuilder fingerprint = new StringBuilder();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return "";
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                fingerprint.append(fingerprint(file));
+            } else if (file.getName().endsWith(".jar")) {
+                fingerprint.append(file.getName()).append(' ').append(file.length()).append(' ').append(file.lastModified()).append('\n');
+            }
+        }
+        return fingerprint.toString();
+    }
+}
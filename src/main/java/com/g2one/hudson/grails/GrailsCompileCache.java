@@ -0,0 +1,468 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.filefilter.IOFileFilter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Snapshots of the compiled output of Grails projects, kept on each node so that a build
+ * starting from an empty <tt>grails.project.work.dir</tt> doesn't have to compile everything again.
+ *
+ * Snapshots are grouped by a configuration key, the digest of the build configuration files
+ * and of the Grails version, and named after the digest of the sources they were compiled from.
+ * Before a build, the snapshot with the same configuration whose sources are closest to the
+ * workspace is copied into the empty project work dir, and the sources that differ from it are
+ * touched so that Grails recompiles them. After a successful build, the project work dir is
+ * stored as a new snapshot, and the least recently used snapshots are deleted to keep the cache
+ * within its size limit.
+ */
+final class GrailsCompileCache {
+
+    /**
+     * The size the snapshots of a node are kept under, in bytes, unless set by the
+     * <tt>com.g2one.hudson.grails.GrailsCompileCache.maxSize</tt> system property.
+     */
+    static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+    static final String[] SOURCE_DIRS = {"grails-app", "src", "test", "scripts"};
+
+    static final String[] CONFIG_FILES = {"grails-app/conf/BuildConfig.groovy", "build.gradle", "application.properties"};
+
+    private static final String SOURCES = "sources.properties";
+
+    private static final String WORK = "work";
+
+    private static final String TMP = ".tmp";
+
+    private final FilePath root;
+    private final long maxSize;
+
+    GrailsCompileCache(FilePath root, long maxSize) {
+        this.root = root;
+        this.maxSize = maxSize;
+    }
+
+    static GrailsCompileCache forNode(Node node) throws IOException {
+        return new GrailsCompileCache(CacheLock.getCacheRoot(node).child("compile"),
+                Long.getLong(GrailsCompileCache.class.getName() + ".maxSize", DEFAULT_MAX_SIZE));
+    }
+
+    /**
+     * Restores the closest snapshot into the project work dir, if it is empty.
+     *
+     * @param grailsVersion identifies the Grails the project is compiled with
+     */
+    void restore(FilePath baseDir, FilePath workDir, String grailsVersion, TaskListener listener) throws IOException, InterruptedException {
+        String message = root.act(new Restore(baseDir.getRemote(), workDir.getRemote(), grailsVersion));
+        if (message != null) {
+            listener.getLogger().println(message);
+        }
+    }
+
+    /**
+     * Stores the project work dir as a snapshot, unless one was already stored for the same sources.
+     */
+    void store(FilePath baseDir, FilePath workDir, String grailsVersion, TaskListener listener) throws IOException, InterruptedException {
+        String message = root.act(new Store(baseDir.getRemote(), workDir.getRemote(), grailsVersion, maxSize));
+        if (message != null) {
+            listener.getLogger().println(message);
+        }
+    }
+
+    private static abstract class SnapshotCallable implements FilePath.FileCallable<String>, Serializable {
+
+        protected final String baseDir;
+        protected final String workDir;
+        protected final String grailsVersion;
+
+        SnapshotCallable(String baseDir, String workDir, String grailsVersion) {
+            this.baseDir = baseDir;
+            this.workDir = workDir;
+            this.grailsVersion = grailsVersion;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Restore extends SnapshotCallable {
+
+        Restore(String baseDir, String workDir, String grailsVersion) {
+            super(baseDir, workDir, grailsVersion);
+        }
+
+        public String invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+            final File work = new File(workDir);
+            String[] existing = work.list();
+            if (existing != null && existing.length > 0) {
+                // Grails compiles incrementally on its own when the previous output is still there
+                return null;
+            }
+            File base = new File(baseDir);
+            final File snapshots = new File(root, configKey(base, grailsVersion));
+            final Map<String, String> sources = sources(base);
+            final List<String> changed = new ArrayList<String>();
+            // the snapshot is only chosen under the lock, and marked as just used so that it isn't evicted
+            File closest = CacheLock.withLock(root, new CacheLock.Body<File>() {
+                public File run() throws IOException, InterruptedException {
+                    File closest = null;
+                    List<String> closestChanged = null;
+                    for (File snapshot : listSnapshots(snapshots)) {
+                        List<String> diff = changedSources(sources, readSources(snapshot));
+                        if (diff != null && (closestChanged == null || diff.size() < closestChanged.size())) {
+                            closest = snapshot;
+                            closestChanged = diff;
+                        }
+                    }
+                    if (closest != null) {
+                        closest.setLastModified(System.currentTimeMillis());
+                        changed.addAll(closestChanged);
+                    }
+                    return closest;
+                }
+            });
+            if (closest == null) {
+                return null;
+            }
+
+            // copied next to the project work dir, which only appears once complete
+            File parent = work.getAbsoluteFile().getParentFile();
+            if (!parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("Failed to create " + parent);
+            }
+            File tmp = File.createTempFile(work.getName(), TMP, parent);
+            try {
+                if (!tmp.delete()) {
+                    throw new IOException("Failed to create " + tmp);
+                }
+                try {
+                    FileUtils.copyDirectory(new File(closest, WORK), tmp, false);
+                } catch (IOException e) {
+                    if (new File(closest, SOURCES).isFile()) {
+                        throw e;
+                    }
+                    return "Compiled classes not restored, " + closest + " was evicted meanwhile";
+                }
+                if (!new File(closest, SOURCES).isFile()) {
+                    return "Compiled classes not restored, " + closest + " was evicted meanwhile";
+                }
+                if (work.exists() && !work.delete() || !tmp.renameTo(work)) {
+                    throw new IOException("Failed to rename " + tmp + " to " + work);
+                }
+            } finally {
+                if (tmp.exists()) {
+                    Util.deleteRecursive(tmp);
+                }
+            }
+            touch(new File(baseDir), changed);
+            return "Restored compiled classes from " + closest + ", " + changed.size() + " sources changed since";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Works out where Grails puts the compiled classes of a project, when the build doesn't set
+     * <tt>grails.project.work.dir</tt> itself: the <tt>grails.project.work.dir</tt> of
+     * <tt>BuildConfig.groovy</tt>, relative to the base dir, or
+     * <tt>&lt;grails.work.dir&gt;/projects/&lt;app.name&gt;</tt>, like Grails does.
+     *
+     * @param grailsWorkDir the <tt>grails.work.dir</tt> of the build, relative to the base dir
+     * @return the project work dir, or null if it can't be worked out
+     */
+    static FilePath findProjectWorkDir(FilePath baseDir, String grailsWorkDir) throws IOException, InterruptedException {
+        String path = baseDir.act(new FindProjectWorkDir(grailsWorkDir));
+        return path == null ? null : new FilePath(baseDir.getChannel(), path);
+    }
+
+    private static final class FindProjectWorkDir implements FilePath.FileCallable<String>, Serializable {
+
+        private final String grailsWorkDir;
+
+        FindProjectWorkDir(String grailsWorkDir) {
+            this.grailsWorkDir = grailsWorkDir;
+        }
+
+        public String invoke(File base, VirtualChannel channel) throws IOException {
+            File buildConfig = new File(base, "grails-app/conf/BuildConfig.groovy");
+            if (buildConfig.isFile()) {
+                Matcher m = BUILD_CONFIG_WORK_DIR.matcher(FileUtils.readFileToString(buildConfig));
+                if (m.find()) {
+                    String workDir = m.group(2);
+                    if (workDir.indexOf('$') >= 0) {
+                        // interpolated, only Grails knows
+                        return null;
+                    }
+                    return resolve(base, workDir).getPath();
+                }
+            }
+            if (grailsWorkDir == null) {
+                return null;
+            }
+            File applicationProperties = new File(base, "application.properties");
+            if (!applicationProperties.isFile()) {
+                return null;
+            }
+            Properties properties = new Properties();
+            InputStream in = new FileInputStream(applicationProperties);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            String appName = properties.getProperty("app.name");
+            if (appName == null || appName.trim().length() == 0) {
+                return null;
+            }
+            return new File(resolve(base, grailsWorkDir), "projects/" + appName.trim()).getPath();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A <tt>grails.project.work.dir = "..."</tt> assignment that isn't commented out.
+     */
+    private static final Pattern BUILD_CONFIG_WORK_DIR = Pattern.compile("^\\s*grails\\.project\\.work\\.dir\\s*=\\s*([\"'])(.*?)\\1", Pattern.MULTILINE);
+
+    private static File resolve(File base, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(base, path);
+    }
+
+    private static final class Store extends SnapshotCallable {
+
+        private final long maxSize;
+
+        Store(String baseDir, String workDir, String grailsVersion, long maxSize) {
+            super(baseDir, workDir, grailsVersion);
+            this.maxSize = maxSize;
+        }
+
+        public String invoke(final File root, VirtualChannel channel) throws IOException, InterruptedException {
+            File work = new File(workDir);
+            if (!work.isDirectory()) {
+                return null;
+            }
+            File base = new File(baseDir);
+            final File snapshots = new File(root, configKey(base, grailsVersion));
+            Map<String, String> sources = sources(base);
+            final File snapshot = new File(snapshots, digest(sources.toString()));
+            if (snapshot.isDirectory()) {
+                snapshot.setLastModified(System.currentTimeMillis());
+                return null;
+            }
+
+            // the copy is made outside of the lock, it's only published and evicted under it
+            if (!snapshots.mkdirs() && !snapshots.isDirectory()) {
+                throw new IOException("Failed to create " + snapshots);
+            }
+            final File tmp = File.createTempFile(snapshot.getName(), TMP, snapshots);
+            try {
+                if (!tmp.delete() || !tmp.mkdir()) {
+                    throw new IOException("Failed to create " + tmp);
+                }
+                FileUtils.copyDirectory(work, new File(tmp, WORK), EXCLUDED, true);
+                writeSources(sources, new File(tmp, SOURCES));
+                return CacheLock.withLock(root, new CacheLock.Body<String>() {
+                    public String run() throws IOException, InterruptedException {
+                        if (!snapshot.isDirectory() && !tmp.renameTo(snapshot)) {
+                            throw new IOException("Failed to store " + snapshot);
+                        }
+                        int evicted = evict(root, snapshot, maxSize);
+                        return "Stored compiled classes in " + snapshot + (evicted > 0 ? ", evicted " + evicted + " older snapshots" : "");
+                    }
+                });
+            } finally {
+                if (tmp.exists()) {
+                    Util.deleteRecursive(tmp);
+                }
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The test reports are the outcome of a build rather than something the next one could reuse.
+     */
+    private static final IOFileFilter EXCLUDED = FileFilterUtils.notFileFilter(FileFilterUtils.nameFileFilter("test-reports"));
+
+    /**
+     * Deletes the least recently used snapshots until the cache fits in the given size.
+     * The snapshot that was just stored is kept in any case.
+     *
+     * @return the number of snapshots deleted
+     */
+    static int evict(File root, File keep, long maxSize) throws IOException {
+        List<File> snapshots = new ArrayList<File>();
+        File[] configs = root.listFiles();
+        if (configs != null) {
+            for (File config : configs) {
+                snapshots.addAll(listSnapshots(config));
+            }
+        }
+        Collections.sort(snapshots, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        long size = 0;
+        long[] sizes = new long[snapshots.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = FileUtils.sizeOfDirectory(snapshots.get(i));
+            size += sizes[i];
+        }
+        int evicted = 0;
+        for (int i = 0; i < sizes.length && size > maxSize; i++) {
+            File snapshot = snapshots.get(i);
+            if (snapshot.equals(keep)) {
+                continue;
+            }
+            Util.deleteRecursive(snapshot);
+            size -= sizes[i];
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private static List<File> listSnapshots(File dir) {
+        File[] snapshots = dir.listFiles();
+        if (snapshots == null) {
+            return Collections.emptyList();
+        }
+        List<File> result = new ArrayList<File>();
+        for (File snapshot : snapshots) {
+            if (!snapshot.getName().endsWith(TMP) && new File(snapshot, SOURCES).isFile()) {
+                result.add(snapshot);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The sources of the workspace that differ from those of a snapshot.
+     *
+     * @return null if the snapshot has sources that were deleted since, as their classes would
+     *         be left in the project work dir
+     */
+    static List<String> changedSources(Map<String, String> sources, Map<String, String> snapshot) {
+        if (!sources.keySet().containsAll(snapshot.keySet())) {
+            return null;
+        }
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            if (!source.getValue().equals(snapshot.get(source.getKey()))) {
+                changed.add(source.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Makes the sources newer than the restored classes, including on file systems that
+     * only keep timestamps to the second.
+     */
+    private static void touch(File base, List<String> paths) {
+        long time = System.currentTimeMillis() + 2000;
+        for (String path : paths) {
+            new File(base, path).setLastModified(time);
+        }
+    }
+
+    static String configKey(File base, String grailsVersion) throws IOException {
+        StringBuilder key = new StringBuilder(grailsVersion);
+        for (String path : CONFIG_FILES) {
+            File file = new File(base, path);
+            key.append(',').append(file.isFile() ? GrailsDependencyCache.sha1(file) : "-");
+        }
+        return digest(key.toString());
+    }
+
+    /**
+     * The digests of the source files of a project, by path relative to its base dir.
+     */
+    static Map<String, String> sources(File base) throws IOException {
+        Map<String, String> sources = new TreeMap<String, String>();
+        for (String dir : SOURCE_DIRS) {
+            addSources(new File(base, dir), dir + "/", sources);
+        }
+        return sources;
+    }
+
+    private static void addSources(File dir, String prefix, Map<String, String> sources) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                addSources(child, prefix + child.getName() + "/", sources);
+            } else {
+                sources.put(prefix + child.getName(), GrailsDependencyCache.sha1(child));
+            }
+        }
+    }
+
+    private static Map<String, String> readSources(File snapshot) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(new File(snapshot, SOURCES));
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        Map<String, String> sources = new TreeMap<String, String>();
+        for (String path : properties.stringPropertyNames()) {
+            sources.put(path, properties.getProperty(path));
+        }
+        return sources;
+    }
+
+    private static void writeSources(Map<String, String> sources, File file) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(sources);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Sources of the compiled classes");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String digest(String s) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -7,33 +7,103 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * @author Kiyotaka Oku
  */
 public class GrailsConsoleAnnotator extends LineTransformationOutputStream {
 
+    private static final KeywordAutomaton DEFAULT_KEYWORDS = compile(GrailsOutputPattern.defaults());
+
+    /**
+     * The escape sequences Grails colours its console with, unless run with <tt>--plain-output</tt>.
+     */
+    private static final Pattern ANSI = Pattern.compile("\u001B\\[[0-9;?]*[ -/]*[@-~]");
+
     private final OutputStream out;
     private final Charset charset;
+    private final List<? extends GrailsOutputPattern> patterns;
+    private final KeywordAutomaton keywords;
+    private final GrailsEventsAction events;
+    /**
+     * Whether lines can be matched on their raw bytes, which saves decoding every line.
+     */
+    private final boolean ascii;
+    /**
+     * Keywords found in the current line, reused from line to line.
+     */
+    private final boolean[] found;
     private boolean testFailed;
+    private boolean errorReported;
 
     public GrailsConsoleAnnotator(OutputStream out, Charset charset) {
+        this(out, charset, GrailsOutputPattern.defaults(), DEFAULT_KEYWORDS, null);
+    }
+
+    /**
+     * @param patterns the patterns to look for
+     * @param events   where to record the events found, or null
+     */
+    public GrailsConsoleAnnotator(OutputStream out, Charset charset, List<? extends GrailsOutputPattern> patterns, GrailsEventsAction events) {
+        this(out, charset, patterns, compile(patterns), events);
+    }
+
+    private GrailsConsoleAnnotator(OutputStream out, Charset charset, List<? extends GrailsOutputPattern> patterns, KeywordAutomaton keywords, GrailsEventsAction events) {
         this.out = out;
         this.charset = charset;
+        this.patterns = patterns;
+        this.keywords = keywords;
+        this.events = events;
+        this.ascii = KeywordAutomaton.isApplicable(charset);
+        this.found = new boolean[patterns.size()];
     }
 
     @Override
     protected void eol(byte[] b, int len) throws IOException {
-        String line = charset.decode(ByteBuffer.wrap(b, 0, len)).toString();
-        line = trimEOL(line);
-
-        if (line.toLowerCase().contains("tests failed")) {
-            testFailed = true;
+        if (ascii) {
+            if (keywords.scan(b, len, found)) {
+                String line = stripAnsi(trimEOL(charset.decode(ByteBuffer.wrap(b, 0, len)).toString()));
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < found.length; i++) {
+                    if (found[i]) {
+                        found[i] = false;
+                        fire(patterns.get(i).parse(line, now));
+                    }
+                }
+            }
+        } else {
+            String line = charset.decode(ByteBuffer.wrap(b, 0, len)).toString();
+            line = stripAnsi(trimEOL(line));
+            String lowerCase = line.toLowerCase();
+            long now = System.currentTimeMillis();
+            for (GrailsOutputPattern pattern : patterns) {
+                if (lowerCase.contains(pattern.getKeyword().toLowerCase())) {
+                    fire(pattern.parse(line, now));
+                }
+            }
         }
 
         out.write(b, 0, len);
     }
 
+    private void fire(GrailsEvent event) {
+        if (event == null) {
+            return;
+        }
+        if (event.getType() == GrailsEvent.Type.TESTS_FAILED) {
+            testFailed = true;
+        } else if (event.getType() == GrailsEvent.Type.ERROR || event.getType() == GrailsEvent.Type.BUILD_FAILED
+                || event.getType() == GrailsEvent.Type.OUT_OF_MEMORY) {
+            errorReported = true;
+        }
+        if (events != null) {
+            events.add(event);
+        }
+    }
+
     @Override
     public void close() throws IOException {
         super.close();
@@ -43,4 +113,41 @@ public class GrailsConsoleAnnotator extends LineTransformationOutputStream {
     public boolean isBuildFailingDueToFailingTests() {
         return testFailed;
     }
+
+    /**
+     * Whether Grails reported an error, a failed build or running out of memory, which is how
+     * the interactive mode signals a failed command.
+     */
+    public boolean isErrorReported() {
+        return errorReported;
+    }
+
+    /**
+     * Tells the annotator the target it followed is over.
+     */
+    void endTarget() {
+        if (events != null) {
+            events.endTarget(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Forgets what has been seen so far, so the same annotator can follow several targets.
+     */
+    void reset() {
+        testFailed = false;
+        errorReported = false;
+    }
+
+    static String stripAnsi(String line) {
+        return line.indexOf('\u001B') < 0 ? line : ANSI.matcher(line).replaceAll("");
+    }
+
+    private static KeywordAutomaton compile(List<? extends GrailsOutputPattern> patterns) {
+        List<String> keywords = new ArrayList<String>();
+        for (GrailsOutputPattern pattern : patterns) {
+            keywords.add(pattern.getKeyword());
+        }
+        return new KeywordAutomaton(keywords);
+    }
 }
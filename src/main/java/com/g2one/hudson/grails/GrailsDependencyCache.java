@@ -0,0 +1,261 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Dependency and plugin archives shared by all builds on a node, so that they are downloaded
+ * once per node instead of once per workspace.
+ *
+ * The archives are stored by the SHA-1 of their content under <tt>objects</tt>, and an index
+ * maps their path within an Ivy cache to their digest. Before a build, the archives of the index
+ * missing from the build's Ivy cache (<tt>grails.work.dir/ivy-cache</tt>) are linked into it.
+ * After a successful build, the archives the build downloaded are moved into the store and
+ * replaced by links. Stored archives are never modified, and the index is only read and written
+ * while holding the {@link CacheLock} of the store, so concurrent builds can share it safely.
+ * Snapshots aren't shared, as Ivy overwrites them in place, which would write through the links.
+ * What Grails 2.3 and later resolve with Aether, into <tt>~/.m2/repository</tt>, isn't shared.
+ */
+final class GrailsDependencyCache {
+
+    static final String IVY_CACHE = "ivy-cache";
+
+    private static final String LINK = ".link";
+
+    private final FilePath root;
+
+    GrailsDependencyCache(FilePath root) {
+        this.root = root;
+    }
+
+    static GrailsDependencyCache forNode(Node node) throws IOException {
+        return new GrailsDependencyCache(CacheLock.getCacheRoot(node).child("dependencies"));
+    }
+
+    /**
+     * Links the archives of the store into an Ivy cache.
+     */
+    void link(FilePath ivyCache, TaskListener listener) throws IOException, InterruptedException {
+        int linked = root.act(new Link(ivyCache.getRemote()));
+        listener.getLogger().println("Linked " + linked + " dependencies from " + root + " into " + ivyCache);
+    }
+
+    /**
+     * Moves the archives downloaded into an Ivy cache into the store.
+     */
+    void harvest(FilePath ivyCache, TaskListener listener) throws IOException, InterruptedException {
+        int harvested = root.act(new Harvest(ivyCache.getRemote()));
+        if (harvested > 0) {
+            listener.getLogger().println("Added " + harvested + " dependencies from " + ivyCache + " to " + root);
+        }
+    }
+
+    /**
+     * Only archives are shared, the Ivy metadata next to them is rewritten by every resolution,
+     * and so are snapshots, which are changing artifacts.
+     */
+    static boolean isShared(String name) {
+        return (name.endsWith(".jar") || name.endsWith(".zip")) && !name.contains("-SNAPSHOT");
+    }
+
+    private static abstract class StoreCallable implements FilePath.FileCallable<Integer>, Serializable {
+
+        protected final String ivyCache;
+
+        StoreCallable(String ivyCache) {
+            this.ivyCache = ivyCache;
+        }
+
+        public Integer invoke(final File root, VirtualChannel channel) throws IOException, InterruptedException {
+            final File objects = new File(root, "objects");
+            if (!objects.mkdirs() && !objects.isDirectory()) {
+                throw new IOException("Failed to create " + objects);
+            }
+            return CacheLock.withLock(root, new CacheLock.Body<Integer>() {
+                public Integer run() throws IOException, InterruptedException {
+                    File indexFile = new File(root, "index.properties");
+                    Properties index = new Properties();
+                    if (indexFile.exists()) {
+                        InputStream in = new FileInputStream(indexFile);
+                        try {
+                            index.load(in);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                    int count = update(objects, index, new File(ivyCache));
+                    if (count > 0 && writesIndex()) {
+                        store(index, indexFile);
+                    }
+                    return count;
+                }
+            });
+        }
+
+        /**
+         * @return the number of archives that were linked or stored
+         */
+        protected abstract int update(File objects, Properties index, File ivyCache) throws IOException, InterruptedException;
+
+        protected boolean writesIndex() {
+            return false;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Link extends StoreCallable {
+
+        Link(String ivyCache) {
+            super(ivyCache);
+        }
+
+        @Override
+        protected int update(File objects, Properties index, File ivyCache) throws IOException, InterruptedException {
+            int count = 0;
+            for (String path : index.stringPropertyNames()) {
+                File file = new File(ivyCache, path);
+                File object = new File(objects, index.getProperty(path));
+                if (!file.exists() && object.exists()) {
+                    linkTo(object, file);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Harvest extends StoreCallable {
+
+        Harvest(String ivyCache) {
+            super(ivyCache);
+        }
+
+        @Override
+        protected int update(File objects, Properties index, File ivyCache) throws IOException, InterruptedException {
+            return harvest(objects, index, ivyCache, "");
+        }
+
+        @Override
+        protected boolean writesIndex() {
+            return true;
+        }
+
+        private int harvest(File objects, Properties index, File dir, String prefix) throws IOException, InterruptedException {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return 0;
+            }
+            int count = 0;
+            for (File child : children) {
+                String path = prefix + child.getName();
+                if (Util.isSymlink(child)) {
+                    continue;
+                }
+                if (child.isDirectory()) {
+                    count += harvest(objects, index, child, path + "/");
+                } else if (isShared(child.getName())) {
+                    String digest = sha1(child);
+                    File object = new File(objects, digest);
+                    if (!object.exists()) {
+                        File tmp = new File(objects, digest + ".tmp");
+                        FileUtils.copyFile(child, tmp);
+                        if (!tmp.renameTo(object)) {
+                            tmp.delete();
+                            throw new IOException("Failed to store " + child + " as " + object);
+                        }
+                        object.setReadOnly();
+                    }
+                    // the link replaces the archive at once, so that it is never missing
+                    File link = new File(dir, child.getName() + LINK);
+                    link.delete();
+                    if (symlink(object, link) && !link.renameTo(child)) {
+                        link.delete();
+                    }
+                    index.setProperty(path, digest);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Links a file to a stored archive, or copies the archive where links are not supported.
+     */
+    private static void linkTo(File object, File file) throws IOException, InterruptedException {
+        File dir = file.getParentFile();
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        if (!symlink(object, file)) {
+            FileUtils.copyFile(object, file);
+        }
+    }
+
+    /**
+     * @return whether the link could be made
+     */
+    private static boolean symlink(File object, File file) throws InterruptedException {
+        Util.createSymlink(file.getParentFile(), object.getAbsolutePath(), file.getName(), new StreamTaskListener(new NullStream()));
+        return file.exists();
+    }
+
+    private static void store(Properties index, File indexFile) throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            index.store(out, "Grails dependency cache index");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(indexFile)) {
+            // renameTo doesn't replace an existing file on Windows
+            indexFile.delete();
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Failed to write " + indexFile);
+            }
+        }
+    }
+
+    static String sha1(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(digest.digest());
+    }
+}
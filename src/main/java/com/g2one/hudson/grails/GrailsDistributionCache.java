@@ -0,0 +1,573 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.ProxyConfiguration;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.tools.DownloadFromUrlInstaller.Installable;
+import hudson.util.DaemonThreadFactory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Grails distributions downloaded once by the controller and handed out to the nodes, so that
+ * installing a version on many nodes doesn't download it from the mirrors once per node.
+ *
+ * The controller downloads a distribution in {@link #CONNECTIONS} ranges at once when the server
+ * supports ranges. Every range goes to its own part file, so an interrupted download resumes
+ * where it stopped. The distribution is then checked against the SHA-1 published next to it,
+ * if there is one, and must be a readable zip. It is stored as <tt>&lt;id&gt;.zip</tt> with its
+ * SHA-1 in <tt>&lt;id&gt;.zip.sha1</tt>.
+ *
+ * The distribution is copied to a node in chunks of {@link #CHUNK} bytes, into a part file
+ * below <tt>grails-cache/distributions</tt> in the root directory of the node. Chunks are
+ * written {@link #WINDOW} at a time and may finish out of order, so the offset up to which all
+ * of them are written is recorded next to the part file, and a copy that is interrupted resumes
+ * from there. The node checks the SHA-1 of the copy before using it.
+ *
+ * With a mirror configured, nodes download the distribution from the mirror themselves, with
+ * ranges to resume, and the controller doesn't download it.
+ */
+final class GrailsDistributionCache {
+
+    static final int CONNECTIONS = 4;
+
+    static final int CHUNK = 1024 * 1024;
+
+    /**
+     * Chunks being written on the node at the same time.
+     */
+    static final int WINDOW = 4;
+
+    /**
+     * Distributions smaller than this are downloaded in a single range.
+     */
+    static final long MIN_SPLIT_SIZE = 4L * 1024 * 1024;
+
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    private static final ExecutorService DOWNLOADS = Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+    private static GrailsDistributionCache instance;
+
+    private final File root;
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    GrailsDistributionCache(File root) {
+        this.root = root;
+    }
+
+    static synchronized GrailsDistributionCache get() {
+        if (instance == null) {
+            instance = new GrailsDistributionCache(new File(Hudson.getInstance().getRootDir(), "grails-distributions"));
+        }
+        return instance;
+    }
+
+    private Object lockFor(String id) {
+        Object lock = locks.get(id);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(id, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * The distribution on the controller, downloaded if it isn't there yet.
+     */
+    File fetch(Installable installable, TaskListener listener) throws IOException, InterruptedException {
+        synchronized (lockFor(installable.id)) {
+            File archive = new File(root, installable.id + ".zip");
+            File sha1File = new File(root, archive.getName() + ".sha1");
+            if (archive.exists() && sha1File.exists()) {
+                return archive;
+            }
+            if (!root.mkdirs() && !root.isDirectory()) {
+                throw new IOException("Failed to create " + root);
+            }
+
+            URL url = new URL(installable.url);
+            long size = getRangeableSize(url);
+            int connections = size >= MIN_SPLIT_SIZE ? CONNECTIONS : 1;
+            listener.getLogger().println("Downloading " + url + " to " + root
+                    + (connections > 1 ? " with " + connections + " connections" : ""));
+
+            File[] parts = new File[connections];
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < connections; i++) {
+                // the size is part of the name, as the ranges depend on it
+                parts[i] = new File(root, archive.getName() + "." + size + ".part" + i);
+                final File part = parts[i];
+                final URL partUrl = url;
+                final long start = connections == 1 ? 0 : size * i / connections;
+                final long end = connections == 1 ? size : size * (i + 1) / connections;
+                futures.add(DOWNLOADS.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        download(partUrl, part, start, end, true);
+                        return null;
+                    }
+                }));
+            }
+            try {
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                throw (IOException) new IOException("Failed to download " + url).initCause(e.getCause());
+            } finally {
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+            }
+
+            File tmp = new File(root, archive.getName() + ".tmp");
+            concatenate(parts, tmp);
+            try {
+                if (size >= 0 && tmp.length() != size) {
+                    throw new IOException("Downloaded " + tmp.length() + " bytes of " + url + " instead of " + size);
+                }
+                String sha1 = GrailsDependencyCache.sha1(tmp);
+                String expected = getPublishedSha1(url, true);
+                if (expected != null && !expected.equalsIgnoreCase(sha1)) {
+                    throw new IOException("The SHA-1 of " + url + " is " + sha1 + ", " + expected + " was expected");
+                }
+                checkZip(tmp);
+                FileUtils.writeStringToFile(sha1File, sha1);
+                archive.delete();
+                if (!tmp.renameTo(archive)) {
+                    throw new IOException("Failed to rename " + tmp + " to " + archive);
+                }
+            } finally {
+                tmp.delete();
+                for (File part : parts) {
+                    part.delete();
+                }
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Puts a distribution on a node, unless it is already there.
+     *
+     * @param mirrorUrl the URL of a directory with the distributions, which the node downloads from, or null
+     * @return the distribution on the node
+     */
+    FilePath install(Installable installable, String mirrorUrl, FilePath nodeRoot, TaskListener listener) throws IOException, InterruptedException {
+        String name = installable.id + ".zip";
+        if (mirrorUrl != null && mirrorUrl.trim().length() > 0) {
+            String url = mirrorUrl.trim().replaceAll("/+$", "") + "/" + installable.url.substring(installable.url.lastIndexOf('/') + 1);
+            FilePath dir = nodeRoot.child("grails-cache").child("distributions");
+            if (!dir.child(name).exists()) {
+                listener.getLogger().println("Downloading " + url + " to " + dir);
+                dir.act(new MirrorDownload(url, name));
+            }
+            return dir.child(name);
+        }
+
+        File archive = fetch(installable, listener);
+        if (!nodeRoot.isRemote()) {
+            return new FilePath(archive);
+        }
+        FilePath target = nodeRoot.child("grails-cache").child("distributions").child(name);
+        transfer(archive, FileUtils.readFileToString(new File(archive.getPath() + ".sha1")).trim(), target, listener);
+        return target;
+    }
+
+    /**
+     * Copies a file to a node in chunks, resuming an earlier copy that was interrupted.
+     */
+    static void transfer(File file, String sha1, FilePath target, TaskListener listener) throws IOException, InterruptedException {
+        FilePath part = target.getParent().child(target.getName() + ".part");
+        long offset = part.act(new Resume(target.getName(), sha1));
+        if (offset < 0) {
+            return;
+        }
+        if (offset > file.length()) {
+            offset = 0;
+        }
+        listener.getLogger().println("Copying " + file.getName() + " to " + target.getParent()
+                + (offset > 0 ? ", resuming after " + offset + " bytes" : ""));
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(offset);
+            LinkedList<Future<Void>> writes = new LinkedList<Future<Void>>();
+            LinkedList<Long> ends = new LinkedList<Long>();
+            // everything before it is on the node
+            long written = offset;
+            byte[] buf = new byte[CHUNK];
+            int len;
+            boolean truncate = true;
+            while ((len = in.read(buf)) > 0) {
+                byte[] chunk = new byte[len];
+                System.arraycopy(buf, 0, chunk, 0, len);
+                if (truncate) {
+                    // written before the others, which it would otherwise cut
+                    part.act(new WriteChunk(offset, chunk, true, offset + len));
+                    written = offset + len;
+                    truncate = false;
+                } else {
+                    writes.add(part.actAsync(new WriteChunk(offset, chunk, false, written)));
+                    ends.add(offset + len);
+                }
+                offset += len;
+                if (writes.size() >= WINDOW) {
+                    waitFor(writes.removeFirst());
+                    written = ends.removeFirst();
+                }
+            }
+            while (!writes.isEmpty()) {
+                waitFor(writes.removeFirst());
+            }
+        } finally {
+            in.close();
+        }
+        part.act(new Commit(target.getName(), sha1));
+    }
+
+    private static void waitFor(Future<Void> write) throws IOException, InterruptedException {
+        try {
+            write.get();
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException("Failed to copy a chunk").initCause(e.getCause());
+        }
+    }
+
+    /**
+     * Prepares the part file of a copy.
+     *
+     * @return how much of the file was already copied, or -1 if the whole file is already there
+     */
+    private static final class Resume implements FilePath.FileCallable<Long>, Serializable {
+
+        private final String name;
+        private final String sha1;
+
+        Resume(String name, String sha1) {
+            this.name = name;
+            this.sha1 = sha1;
+        }
+
+        public Long invoke(File part, VirtualChannel channel) throws IOException {
+            File target = new File(part.getParentFile(), name);
+            if (target.exists() && sha1.equals(GrailsDependencyCache.sha1(target))) {
+                return -1L;
+            }
+            File dir = part.getParentFile();
+            if (!dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            File written = writtenFile(part);
+            if (!part.exists() || !written.exists()) {
+                return 0L;
+            }
+            // the part file may be longer, with chunks written after a gap
+            return Math.min(readWritten(written), part.length());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Writes a chunk into the part file of a copy, and records how much of the file is known to be
+     * written without gaps once it is, if that is more than recorded so far.
+     */
+    private static final class WriteChunk implements FilePath.FileCallable<Void>, Serializable {
+
+        private final long offset;
+        private final byte[] data;
+        private final boolean truncate;
+        private final long written;
+
+        /**
+         * @param written the offset up to which the part file is written once this chunk is
+         */
+        WriteChunk(long offset, byte[] data, boolean truncate, long written) {
+            this.offset = offset;
+            this.data = data;
+            this.truncate = truncate;
+            this.written = written;
+        }
+
+        public Void invoke(File part, VirtualChannel channel) throws IOException {
+            RandomAccessFile out = new RandomAccessFile(part, "rw");
+            try {
+                if (truncate) {
+                    // drops what a copy of another version left after the offset
+                    out.setLength(offset);
+                }
+                out.seek(offset);
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            File recorded = writtenFile(part);
+            // the chunks of a copy are written at the same time, the highest offset wins
+            synchronized (WriteChunk.class) {
+                if (truncate || readWritten(recorded) < written) {
+                    FileUtils.writeStringToFile(recorded, Long.toString(written));
+                }
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Checks a copied file and moves it in place. A copy that doesn't match is deleted.
+     */
+    private static final class Commit implements FilePath.FileCallable<Void>, Serializable {
+
+        private final String name;
+        private final String sha1;
+
+        Commit(String name, String sha1) {
+            this.name = name;
+            this.sha1 = sha1;
+        }
+
+        public Void invoke(File part, VirtualChannel channel) throws IOException {
+            String actual = GrailsDependencyCache.sha1(part);
+            if (!sha1.equals(actual)) {
+                part.delete();
+                writtenFile(part).delete();
+                throw new IOException("The SHA-1 of the copy of " + name + " is " + actual + ", " + sha1 + " was expected");
+            }
+            File target = new File(part.getParentFile(), name);
+            target.delete();
+            if (!part.renameTo(target)) {
+                throw new IOException("Failed to rename " + part + " to " + target);
+            }
+            writtenFile(part).delete();
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The file recording the offset up to which the part file of a copy is written without gaps.
+     */
+    static File writtenFile(File part) {
+        return new File(part.getParentFile(), part.getName() + ".written");
+    }
+
+    private static long readWritten(File written) throws IOException {
+        if (!written.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(FileUtils.readFileToString(written).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Downloads a distribution from a mirror on the node, resuming an earlier download.
+     */
+    private static final class MirrorDownload implements FilePath.FileCallable<Void>, Serializable {
+
+        private final String url;
+        private final String name;
+
+        MirrorDownload(String url, String name) {
+            this.url = url;
+            this.name = name;
+        }
+
+        public Void invoke(File dir, VirtualChannel channel) throws IOException {
+            if (!dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            URL source = new URL(url);
+            File part = new File(dir, name + ".part");
+            download(source, part, 0, -1, false);
+            try {
+                String expected = getPublishedSha1(source, false);
+                if (expected != null && !expected.equalsIgnoreCase(GrailsDependencyCache.sha1(part))) {
+                    throw new IOException("The SHA-1 of " + url + " isn't " + expected);
+                }
+                checkZip(part);
+            } catch (IOException e) {
+                part.delete();
+                throw e;
+            }
+            File target = new File(dir, name);
+            target.delete();
+            if (!part.renameTo(target)) {
+                throw new IOException("Failed to rename " + part + " to " + target);
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static URLConnection open(URL url, boolean proxy) throws IOException {
+        return proxy ? ProxyConfiguration.open(url) : url.openConnection();
+    }
+
+    /**
+     * The size of what a URL points to, or -1 if it is unknown or the server doesn't support ranges.
+     */
+    static long getRangeableSize(URL url) throws IOException {
+        URLConnection connection = open(url, true);
+        if (!(connection instanceof HttpURLConnection)) {
+            return -1;
+        }
+        HttpURLConnection http = (HttpURLConnection) connection;
+        http.setRequestMethod("HEAD");
+        try {
+            if (http.getResponseCode() != HttpURLConnection.HTTP_OK || !"bytes".equals(http.getHeaderField("Accept-Ranges"))) {
+                return -1;
+            }
+            String length = http.getHeaderField("Content-Length");
+            return length == null ? -1 : Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            return -1;
+        } finally {
+            http.disconnect();
+        }
+    }
+
+    /**
+     * Downloads the bytes of a URL from <tt>start</tt> to <tt>end</tt> (exclusive, or -1 for the end)
+     * into a part file, after what the part file already holds.
+     */
+    static void download(URL url, File part, long start, long end, boolean proxy) throws IOException {
+        long offset = part.exists() ? part.length() : 0;
+        if (end >= 0 && start + offset >= end) {
+            return;
+        }
+        URLConnection connection = open(url, proxy);
+        if (start + offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + (start + offset) + "-" + (end >= 0 ? String.valueOf(end - 1) : ""));
+        }
+        boolean append = false;
+        if (connection instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection) connection).getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                append = true;
+            } else if (code == RANGE_NOT_SATISFIABLE && offset > 0 && end < 0) {
+                // the part file already has everything
+                return;
+            } else if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException(url + " returned " + code);
+            } else if (start > 0) {
+                throw new IOException(url + " doesn't support ranges");
+            }
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            OutputStream out = new FileOutputStream(part, append);
+            try {
+                long remaining = end >= 0 ? end - start - (append ? offset : 0) : Long.MAX_VALUE;
+                byte[] buf = new byte[8192];
+                int len;
+                while (remaining > 0 && (len = in.read(buf, 0, (int) Math.min(buf.length, remaining))) >= 0) {
+                    out.write(buf, 0, len);
+                    remaining -= len;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The SHA-1 published as <tt>&lt;url&gt;.sha1</tt>, or null if there is none.
+     */
+    static String getPublishedSha1(URL url, boolean proxy) {
+        try {
+            InputStream in = open(new URL(url.toExternalForm() + ".sha1"), proxy).getInputStream();
+            try {
+                String content = IOUtils.toString(in, "US-ASCII").trim();
+                // sha1sum output is followed by the file name
+                String sha1 = content.split("\\s+")[0];
+                return sha1.matches("[0-9a-fA-F]{40}") ? sha1 : null;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads all the entries of a zip, which checks their CRC.
+     */
+    static void checkZip(File file) throws IOException {
+        ZipFile zip;
+        try {
+            zip = new ZipFile(file);
+        } catch (IOException e) {
+            throw (IOException) new IOException(file + " isn't a zip").initCause(e);
+        }
+        try {
+            byte[] buf = new byte[8192];
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                InputStream in = zip.getInputStream(entries.nextElement());
+                try {
+                    while (in.read(buf) >= 0) {
+                        // CRC is checked at the end of the entry
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void concatenate(File[] parts, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (File part : parts) {
+                InputStream in = new FileInputStream(part);
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
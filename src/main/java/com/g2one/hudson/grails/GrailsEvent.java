@@ -0,0 +1,92 @@
+package com.g2one.hudson.grails;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.Serializable;
+
+/**
+ * Something noteworthy Grails printed to the console while running a target,
+ * as recognized by a {@link GrailsOutputPattern}.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class GrailsEvent implements Serializable {
+
+    public enum Type {
+        DEPENDENCY_RESOLUTION,
+        COMPILING,
+        RUNNING_TESTS,
+        TEST_PROGRESS,
+        COMPLETED_TESTS,
+        TESTS_PASSED,
+        TESTS_FAILED,
+        ERROR,
+        BUILD_FAILED,
+        OUT_OF_MEMORY
+    }
+
+    private final Type type;
+    private final long timestamp;
+    private final String text;
+    private final String phase;
+    private final int count;
+    private final int failures;
+
+    public GrailsEvent(Type type, long timestamp, String text) {
+        this(type, timestamp, text, null, -1, -1);
+    }
+
+    /**
+     * @param phase    the test phase (unit, integration, functional...) the event is about, or null
+     * @param count    number of files or tests the event is about, or -1
+     * @param failures number of failed tests, or -1
+     */
+    public GrailsEvent(Type type, long timestamp, String text, String phase, int count, int failures) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.text = text;
+        this.phase = phase;
+        this.count = count;
+        this.failures = failures;
+    }
+
+    @Exported
+    public Type getType() {
+        return type;
+    }
+
+    @Exported
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * The console line the event was recognized in.
+     */
+    @Exported
+    public String getText() {
+        return text;
+    }
+
+    @Exported
+    public String getPhase() {
+        return phase;
+    }
+
+    @Exported
+    public int getCount() {
+        return count;
+    }
+
+    @Exported
+    public int getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return type + "@" + timestamp + ": " + text;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,199 @@
+package com.g2one.hudson.grails;
+
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Api;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link GrailsEvent}s recognized in the console output of a build, so that they can be
+ * used without scanning the log again. Available through the remote API at <tt>grailsEvents/api</tt>.
+ *
+ * The events are also followed as they come in, to show the progress of the running tests
+ * and to add up how long each phase (dependency resolution, compile, unit, integration,
+ * functional tests...) took, which is kept with the build for comparing builds over time.
+ */
+@ExportedBean
+public class GrailsEventsAction implements Action {
+
+    /**
+     * Keeps a build whose output goes wrong in a loop from bloating its build record.
+     */
+    static final int MAX_EVENTS = 1000;
+
+    static final String DEPENDENCY_RESOLUTION = "dependency resolution";
+    static final String COMPILE = "compile";
+
+    private final List<GrailsEvent> events = new ArrayList<GrailsEvent>();
+
+    /**
+     * Total time spent in each phase, in milliseconds, in the order the phases were first entered.
+     */
+    private final Map<String, Long> phaseDurations = new LinkedHashMap<String, Long>();
+
+    private String phase;
+    private long phaseStarted;
+    private int testsTotal = -1;
+    private int testsDone = -1;
+
+    /**
+     * Records an event. Consecutive progress events replace each other, only the latest is kept.
+     */
+    synchronized void add(GrailsEvent event) {
+        int last = events.size() - 1;
+        if (event.getType() == GrailsEvent.Type.TEST_PROGRESS && last >= 0 && events.get(last).getType() == GrailsEvent.Type.TEST_PROGRESS) {
+            events.set(last, event);
+        } else if (events.size() < MAX_EVENTS) {
+            events.add(event);
+        }
+
+        switch (event.getType()) {
+            case DEPENDENCY_RESOLUTION:
+                startPhase(DEPENDENCY_RESOLUTION, event.getTimestamp());
+                break;
+            case COMPILING:
+                startPhase(COMPILE, event.getTimestamp());
+                break;
+            case RUNNING_TESTS:
+                startPhase(event.getPhase(), event.getTimestamp());
+                testsTotal = event.getCount();
+                testsDone = 0;
+                break;
+            case TEST_PROGRESS:
+                startPhase(event.getPhase(), event.getTimestamp());
+                testsDone = event.getCount();
+                break;
+            case COMPLETED_TESTS:
+                testsDone = event.getCount();
+                endPhase(event.getTimestamp());
+                break;
+        }
+    }
+
+    /**
+     * Adds the events and phase durations recorded separately for a target, as done for targets running concurrently.
+     */
+    synchronized void merge(GrailsEventsAction other) {
+        for (GrailsEvent event : other.getEvents()) {
+            if (events.size() < MAX_EVENTS) {
+                events.add(event);
+            }
+        }
+        for (Map.Entry<String, Long> e : other.getPhaseDurations().entrySet()) {
+            Long sum = phaseDurations.get(e.getKey());
+            phaseDurations.put(e.getKey(), (sum == null ? 0 : sum) + e.getValue());
+        }
+    }
+
+    /**
+     * Ends the current phase when the target it belongs to is over.
+     */
+    synchronized void endTarget(long timestamp) {
+        endPhase(timestamp);
+    }
+
+    private void startPhase(String name, long timestamp) {
+        if (name == null || name.equals(phase)) {
+            return;
+        }
+        endPhase(timestamp);
+        phase = name;
+        phaseStarted = timestamp;
+    }
+
+    private void endPhase(long timestamp) {
+        if (phase != null) {
+            Long sum = phaseDurations.get(phase);
+            phaseDurations.put(phase, (sum == null ? 0 : sum) + Math.max(0, timestamp - phaseStarted));
+            phase = null;
+        }
+    }
+
+    /**
+     * The phase Grails is currently in, or null if none is running.
+     */
+    @Exported
+    public synchronized String getPhase() {
+        return phase;
+    }
+
+    public boolean isInProgress() {
+        return getPhase() != null;
+    }
+
+    /**
+     * Number of tests of the current or last test phase, or -1 if no tests ran.
+     */
+    @Exported
+    public synchronized int getTestsTotal() {
+        return testsTotal;
+    }
+
+    /**
+     * Number of tests run so far in the current or last test phase, or -1 if no tests ran.
+     */
+    @Exported
+    public synchronized int getTestsDone() {
+        return testsDone;
+    }
+
+    /**
+     * Percentage of the tests of the current or last test phase run so far, or -1 if unknown.
+     */
+    @Exported
+    public synchronized int getTestProgress() {
+        if (testsTotal <= 0 || testsDone < 0) {
+            return -1;
+        }
+        return Math.min(100, testsDone * 100 / testsTotal);
+    }
+
+    /**
+     * Time spent in each finished phase, in milliseconds.
+     */
+    @Exported
+    public synchronized Map<String, Long> getPhaseDurations() {
+        return new LinkedHashMap<String, Long>(phaseDurations);
+    }
+
+    public String getDurationString(long millis) {
+        return Util.getTimeSpanString(millis);
+    }
+
+    @Exported
+    public synchronized List<GrailsEvent> getEvents() {
+        return new ArrayList<GrailsEvent>(events);
+    }
+
+    public synchronized List<GrailsEvent> getEvents(GrailsEvent.Type type) {
+        List<GrailsEvent> result = new ArrayList<GrailsEvent>();
+        for (GrailsEvent event : events) {
+            if (event.getType() == type) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Grails Events";
+    }
+
+    public String getUrlName() {
+        return "grailsEvents";
+    }
+}
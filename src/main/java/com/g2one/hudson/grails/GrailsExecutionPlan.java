@@ -0,0 +1,119 @@
+package com.g2one.hudson.grails;
+
+import hudson.util.ArgumentListBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the command lines of the targets of a build step have in common, worked out once per build:
+ * the Grails executable, the build variables, the system properties and the globally enabled options.
+ *
+ * The command of a target is the executable, <tt>-D</tt> arguments for the build variables, the system
+ * properties and the properties of the step, then the target, its arguments and the enabled options
+ * it doesn't already have.
+ */
+final class GrailsExecutionPlan {
+
+    private final String[] head;
+    private final String[] tail;
+    private final Map<String, String> systemProperties;
+    private final List<String> options;
+    private final Map<String, String> env;
+
+    /**
+     * @param head             the executable and the build variables
+     * @param systemProperties the system properties passed to every target
+     * @param tail             the properties of the step
+     * @param options          the enabled options, in the order they are added
+     * @param env              the environment the arguments of the targets are evaluated with
+     */
+    GrailsExecutionPlan(List<String> head, Map<String, String> systemProperties, List<String> tail, List<String> options, Map<String, String> env) {
+        this.head = head.toArray(new String[head.size()]);
+        this.systemProperties = Collections.unmodifiableMap(new HashMap<String, String>(systemProperties));
+        this.tail = tail.toArray(new String[tail.size()]);
+        this.options = new ArrayList<String>(options);
+        this.env = env;
+    }
+
+    Map<String, String> getSystemProperties() {
+        return systemProperties;
+    }
+
+    /**
+     * The value Grails gets for a system property, from the last <tt>-D</tt> argument setting it,
+     * whether it comes from the build variables, the system properties or the properties of the step.
+     *
+     * @return the value, or null if it isn't set
+     */
+    String getSystemProperty(String name) {
+        List<String> args = command().toList();
+        String prefix = "-D" + name + "=";
+        for (int i = args.size() - 1; i >= 0; i--) {
+            if (args.get(i).startsWith(prefix)) {
+                return args.get(i).substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The part of the command line shared by all targets.
+     */
+    ArgumentListBuilder command() {
+        return command(systemProperties);
+    }
+
+    /**
+     * The part of the command line shared by all targets, with other system properties,
+     * as for the targets run in parallel.
+     */
+    ArgumentListBuilder command(Map<String, String> systemProperties) {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(head);
+        if (systemProperties.size() > 0) {
+            args.addKeyValuePairs("-D", systemProperties);
+        }
+        args.add(tail);
+        return args;
+    }
+
+    /**
+     * The command line starting Grails in interactive mode, with the enabled options, as they
+     * decide how the console behaves before the first target is typed at its prompt.
+     */
+    ArgumentListBuilder sessionCommand(Map<String, String> systemProperties) {
+        ArgumentListBuilder args = command(systemProperties);
+        for (String option : options) {
+            args.add(option);
+        }
+        return args;
+    }
+
+    /**
+     * Appends a target, its arguments and the enabled options it doesn't already have.
+     * An argument already on the command line isn't added again.
+     */
+    void addTarget(ArgumentListBuilder args, String[] targetAndArgs) {
+        args.add(targetAndArgs[0]);
+        Set<String> seen = new HashSet<String>(args.toList());
+        Set<String> targetArgs = new HashSet<String>();
+        for (int i = 1; i < targetAndArgs.length; i++) {
+            String arg = GrailsBuilder.eval(env, targetAndArgs[i]);
+            targetArgs.add(arg);
+            if (seen.add(arg)) {
+                args.add(arg);
+            }
+        }
+        for (String option : options) {
+            if (!targetArgs.contains(option)) {
+                args.add(option);
+            }
+        }
+    }
+}
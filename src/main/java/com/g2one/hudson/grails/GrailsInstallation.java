@@ -15,7 +15,9 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +46,11 @@ public final class GrailsInstallation extends ToolInstallation implements Enviro
 
         private volatile GrailsInstallation[] installations = new GrailsInstallation[0];
 
+        /**
+         * The installations by name, made again when they are configured.
+         */
+        private transient volatile Map<String, GrailsInstallation> installationsByName;
+
         public DescriptorImpl() {
             load();
         }
@@ -56,6 +63,8 @@ public final class GrailsInstallation extends ToolInstallation implements Enviro
             } else if (new File(root, GrailsBuilder.class.getName() + ".xml").exists()) {
                 loadFromOldConfigFile();
             }
+            installationsByName = null;
+            GrailsInstallationCache.invalidateAll();
         }
 
         private void loadFromOldConfigFile() {
@@ -88,9 +97,28 @@ public final class GrailsInstallation extends ToolInstallation implements Enviro
             return installations;
         }
 
+        /**
+         * @return the installation with the given name, or null if there is none
+         */
+        public GrailsInstallation getInstallation(String name) {
+            Map<String, GrailsInstallation> byName = installationsByName;
+            if (byName == null) {
+                byName = new HashMap<String, GrailsInstallation>();
+                for (GrailsInstallation installation : installations) {
+                    if (!byName.containsKey(installation.getName())) {
+                        byName.put(installation.getName(), installation);
+                    }
+                }
+                installationsByName = byName;
+            }
+            return name == null ? null : byName.get(name);
+        }
+
         @Override
         public void setInstallations(GrailsInstallation... installations) {
             this.installations = installations;
+            installationsByName = null;
+            GrailsInstallationCache.invalidateAll();
             save();
         }
     }
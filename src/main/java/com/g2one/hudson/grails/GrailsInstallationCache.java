@@ -0,0 +1,158 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The Grails installations resolved for each node, so that builds don't run the installers
+ * again when the installation is already known to be there.
+ *
+ * The installations of a node are forgotten when the node goes offline or the configuration
+ * of the nodes changes, and all of them when the Grails installations are configured.
+ * A resolution in progress at that time updates the forgotten cache, not the new one.
+ *
+ * An installation being installed on a node isn't installed a second time by a build or by
+ * {@link GrailsProvisioner} at the same time, they wait for the installation in progress.
+ * If it fails, only the build installing it fails, the builds waiting for it try again
+ * themselves. An installation whose executable has been deleted since is invalidated by
+ * the build finding it missing, and installed again.
+ */
+final class GrailsInstallationCache {
+
+    /**
+     * Installations by node name, then by name and home expanded for the environment of the build.
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Future<GrailsInstallation>>> NODES = new ConcurrentHashMap<String, ConcurrentMap<String, Future<GrailsInstallation>>>();
+
+    private GrailsInstallationCache() {
+    }
+
+    private static ConcurrentMap<String, Future<GrailsInstallation>> forNode(Node node) {
+        ConcurrentMap<String, Future<GrailsInstallation>> installations = NODES.get(node.getNodeName());
+        if (installations == null) {
+            ConcurrentMap<String, Future<GrailsInstallation>> newInstallations = new ConcurrentHashMap<String, Future<GrailsInstallation>>();
+            installations = NODES.putIfAbsent(node.getNodeName(), newInstallations);
+            if (installations == null) {
+                installations = newInstallations;
+            }
+        }
+        return installations;
+    }
+
+    /**
+     * The installation for the environment of a build and a node, installing it on the node
+     * if needed the first time.
+     */
+    static GrailsInstallation resolve(GrailsInstallation installation, EnvVars env, final Node node, final TaskListener listener) throws IOException, InterruptedException {
+        final GrailsInstallation forEnvironment = installation.forEnvironment(env);
+        String key = key(forEnvironment);
+        ConcurrentMap<String, Future<GrailsInstallation>> installations = forNode(node);
+        while (true) {
+            Future<GrailsInstallation> resolved = installations.get(key);
+            boolean installing = false;
+            if (resolved == null) {
+                FutureTask<GrailsInstallation> task = new FutureTask<GrailsInstallation>(new Callable<GrailsInstallation>() {
+                    public GrailsInstallation call() throws IOException, InterruptedException {
+                        return forEnvironment.forNode(node, listener);
+                    }
+                });
+                resolved = installations.putIfAbsent(key, task);
+                if (resolved == null) {
+                    resolved = task;
+                    installing = true;
+                    task.run();
+                }
+            }
+            if (!resolved.isDone()) {
+                listener.getLogger().println("Waiting for " + forEnvironment.getName() + " to be installed on " + node.getDisplayName());
+            }
+            try {
+                return resolved.get();
+            } catch (ExecutionException e) {
+                // tried again next time
+                installations.remove(key, resolved);
+                if (!installing) {
+                    // the build installing it failed or was aborted, which says nothing about this one
+                    listener.getLogger().println("The installation of " + forEnvironment.getName() + " by another build failed, trying again");
+                    continue;
+                }
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw (IOException) new IOException("Failed to install " + forEnvironment.getName()).initCause(cause);
+            }
+        }
+    }
+
+    /**
+     * Forgets an installation resolved for the environment of a build and a node, when its
+     * executable is missing, so that the next resolution installs it again. Nothing is forgotten
+     * if another build has already done it and is installing it again.
+     *
+     * @param missing the installation resolved, whose executable is missing
+     */
+    static void invalidate(GrailsInstallation installation, EnvVars env, Node node, GrailsInstallation missing) {
+        ConcurrentMap<String, Future<GrailsInstallation>> installations = forNode(node);
+        String key = key(installation.forEnvironment(env));
+        Future<GrailsInstallation> resolved = installations.get(key);
+        if (resolved == null || !resolved.isDone()) {
+            return;
+        }
+        try {
+            if (resolved.get() == missing) {
+                installations.remove(key, resolved);
+            }
+        } catch (ExecutionException e) {
+            // forgotten by the build that failed to install it
+        } catch (InterruptedException e) {
+            // can't happen, it is done
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String key(GrailsInstallation forEnvironment) {
+        return forEnvironment.getName() + '\0' + forEnvironment.getHome();
+    }
+
+    static void invalidate(String nodeName) {
+        NODES.remove(nodeName);
+    }
+
+    static void invalidateAll() {
+        NODES.clear();
+    }
+
+    @Extension
+    public static final class NodeListener extends ComputerListener {
+
+        @Override
+        public void onOffline(Computer c) {
+            invalidate(c.getName());
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            // tool locations may have been changed in the node properties
+            invalidateAll();
+        }
+    }
+}
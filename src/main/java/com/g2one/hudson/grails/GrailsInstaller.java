@@ -1,15 +1,95 @@
 package com.g2one.hudson.grails;
 
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 import hudson.tools.DownloadFromUrlInstaller;
 import hudson.tools.ToolInstallation;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Installs Grails from the distributions the controller downloaded once, see {@link GrailsDistributionCache},
+ * or from a mirror close to the nodes.
+ */
 public class GrailsInstaller extends DownloadFromUrlInstaller {
 
-    @DataBoundConstructor
+    private final String mirrorUrl;
+
     public GrailsInstaller(String id) {
+        this(id, null);
+    }
+
+    @DataBoundConstructor
+    public GrailsInstaller(String id, String mirrorUrl) {
         super(id);
+        this.mirrorUrl = mirrorUrl;
+    }
+
+    /**
+     * The URL of a directory with the Grails distributions, which the nodes download from instead of the controller.
+     */
+    public String getMirrorUrl() {
+        return mirrorUrl;
+    }
+
+    @Override
+    public FilePath performInstallation(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
+        FilePath expected = preferredLocation(tool, node);
+
+        Installable inst = getInstallable();
+        if (inst == null) {
+            log.getLogger().println("Invalid tool ID " + id);
+            return expected;
+        }
+        if (isUpToDate(expected, inst)) {
+            return expected;
+        }
+
+        FilePath cacheRoot = CacheLock.getCacheRoot(node);
+        FilePath archive = GrailsDistributionCache.get().install(inst, mirrorUrl, cacheRoot.getParent(), log);
+        log.getLogger().println("Unpacking " + archive.getName() + " to " + expected + " on " + node.getDisplayName());
+        if (expected.exists()) {
+            expected.deleteContents();
+        } else {
+            expected.mkdirs();
+        }
+        int shared = GrailsUnpacker.unpack(archive, expected, cacheRoot.child("distributions").child("objects"));
+        if (shared > 0) {
+            log.getLogger().println("Linked " + shared + " files shared with other Grails versions");
+        }
+
+        FilePath base = findPullUpDirectory(expected);
+        if (base != null && !base.equals(expected)) {
+            base.moveAllChildrenTo(expected);
+        }
+        // leave a record for the next up-to-date check
+        expected.child(".installedFrom").write(inst.url, "UTF-8");
+        expected.child("bin").act(new MakeExecutable());
+        return expected;
+    }
+
+    /**
+     * Unzipping doesn't keep the permissions of the scripts.
+     */
+    private static final class MakeExecutable implements FilePath.FileCallable<Void>, Serializable {
+
+        public Void invoke(File bin, VirtualChannel channel) throws IOException {
+            File[] files = bin.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.setExecutable(true, false);
+                }
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
     }
 
     @Extension
@@ -0,0 +1,175 @@
+package com.g2one.hudson.grails;
+
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The memory the Grails processes running on a node at the same time may use, so that builds
+ * on several executors of a node don't make it swap or run out of memory.
+ *
+ * Every Grails process declares the memory it is expected to use and waits, first come first
+ * served, until the processes running on the node leave enough of the budget for it. A process
+ * expecting more than the whole budget waits until it can run alone. The budget of a node is set
+ * with {@link GrailsNodeProperty}, on the node or for all nodes, and there is none by default.
+ */
+final class GrailsMemoryBudget {
+
+    static final int DEFAULT_EXPECTED_MEMORY = 1024;
+
+    /**
+     * Used when the node has no budget, admits everything at once.
+     */
+    static final GrailsMemoryBudget UNLIMITED = new GrailsMemoryBudget("", 0);
+
+    private static final ConcurrentMap<String, GrailsMemoryBudget> NODES = new ConcurrentHashMap<String, GrailsMemoryBudget>();
+
+    private static final Pattern XMX = Pattern.compile("-Xmx(\\d+)([kKmMgG]?)");
+
+    private final String nodeName;
+    private final int budget;
+    private final Semaphore memory;
+
+    GrailsMemoryBudget(String nodeName, int budget) {
+        this.nodeName = nodeName;
+        this.budget = budget;
+        this.memory = new Semaphore(budget, true);
+    }
+
+    /**
+     * The budget of a node. When the budget is configured again, the processes running keep
+     * the budget they were admitted by, and the processes starting afterwards use the new one.
+     */
+    static GrailsMemoryBudget forNode(Node node) {
+        GrailsNodeProperty property = node.getNodeProperties().get(GrailsNodeProperty.class);
+        if (property == null) {
+            property = Hudson.getInstance().getGlobalNodeProperties().get(GrailsNodeProperty.class);
+        }
+        int budget = property == null ? 0 : property.getMemoryBudget();
+        if (budget <= 0) {
+            return UNLIMITED;
+        }
+        String nodeName = node.getNodeName();
+        GrailsMemoryBudget current = NODES.get(nodeName);
+        while (current == null || current.budget != budget) {
+            GrailsMemoryBudget updated = new GrailsMemoryBudget(nodeName, budget);
+            if (current == null ? NODES.putIfAbsent(nodeName, updated) == null : NODES.replace(nodeName, current, updated)) {
+                return updated;
+            }
+            current = NODES.get(nodeName);
+        }
+        return current;
+    }
+
+    /**
+     * The admission of the processes of a build step, each expected to use the same memory.
+     */
+    Admission admission(int megabytes) {
+        return new Admission(this, megabytes);
+    }
+
+    /**
+     * Waits until the budget has room for a process.
+     *
+     * @param megabytes the memory the process is expected to use
+     * @return how long the process waited, in milliseconds
+     */
+    long acquire(int megabytes, TaskListener listener) throws InterruptedException {
+        if (budget <= 0) {
+            return 0;
+        }
+        int permits = permits(megabytes);
+        // unlike tryAcquire(permits), doesn't go ahead of the processes waiting
+        if (memory.tryAcquire(permits, 0, TimeUnit.MILLISECONDS)) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        synchronized (listener) {
+            listener.getLogger().println("Waiting for " + megabytes + " MB of the " + budget + " MB Grails memory budget of "
+                    + (nodeName.length() == 0 ? "master" : nodeName) + ", " + getAvailable() + " MB available");
+        }
+        memory.acquire(permits);
+        long waited = System.currentTimeMillis() - start;
+        synchronized (listener) {
+            listener.getLogger().println("Waited " + Util.getTimeSpanString(waited) + " for memory");
+        }
+        return waited;
+    }
+
+    /**
+     * Gives back the memory of a process that is over.
+     */
+    void release(int megabytes) {
+        if (budget > 0) {
+            memory.release(permits(megabytes));
+        }
+    }
+
+    int getAvailable() {
+        return memory.availablePermits();
+    }
+
+    private int permits(int megabytes) {
+        return Math.max(1, Math.min(megabytes, budget));
+    }
+
+    static final class Admission {
+
+        private final GrailsMemoryBudget budget;
+        private final int megabytes;
+
+        Admission(GrailsMemoryBudget budget, int megabytes) {
+            this.budget = budget;
+            this.megabytes = megabytes;
+        }
+
+        /**
+         * Waits until a process may start.
+         *
+         * @return how long it waited, in milliseconds
+         */
+        long enter(TaskListener listener) throws InterruptedException {
+            return budget.acquire(megabytes, listener);
+        }
+
+        /**
+         * The process is over.
+         */
+        void exit() {
+            budget.release(megabytes);
+        }
+    }
+
+    /**
+     * The maximum heap size of the first <tt>-Xmx</tt> option found in JVM options, in megabytes,
+     * or -1 if there is none.
+     */
+    static int parseMaxHeap(String opts) {
+        if (opts == null) {
+            return -1;
+        }
+        Matcher m = XMX.matcher(opts);
+        if (!m.find()) {
+            return -1;
+        }
+        long size = Long.parseLong(m.group(1));
+        switch (Character.toLowerCase(m.group(2).length() == 0 ? 'b' : m.group(2).charAt(0))) {
+            case 'g':
+                return (int) (size * 1024);
+            case 'm':
+                return (int) size;
+            case 'k':
+                return (int) (size / 1024);
+            default:
+                return (int) (size / (1024 * 1024));
+        }
+    }
+}
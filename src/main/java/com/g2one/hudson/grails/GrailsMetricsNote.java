@@ -0,0 +1,47 @@
+package com.g2one.hudson.grails;
+
+import hudson.Extension;
+import hudson.MarkupText;
+import hudson.Util;
+import hudson.console.ConsoleAnnotationDescriptor;
+import hudson.console.ConsoleAnnotator;
+import hudson.console.ConsoleNote;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Marks the line summarizing what a target took, so that the summary can be shown next to the
+ * target in the outline of the console.
+ */
+public class GrailsMetricsNote extends ConsoleNote {
+
+    private final String summary;
+
+    public GrailsMetricsNote(String summary) {
+        this.summary = summary;
+    }
+
+    @Override
+    public ConsoleAnnotator annotate(Object context, MarkupText text, int charPos) {
+        text.addMarkup(charPos, "<span data_grails_metrics=\"" + Util.escape(summary) + "\"></span>");
+        return null;
+    }
+
+    /**
+     * Prints the summary line of a target.
+     */
+    static void print(PrintStream logger, GrailsTargetMetrics metrics) throws IOException {
+        new GrailsMetricsNote(metrics.getSummary()).encodeTo(logger);
+        logger.println("Grails target " + metrics.getTarget() + " took " + metrics.getSummary());
+    }
+
+    @Extension
+    public static class DescriptorImpl extends ConsoleAnnotationDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Grails target metrics";
+        }
+    }
+}
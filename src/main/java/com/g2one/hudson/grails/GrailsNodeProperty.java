@@ -0,0 +1,38 @@
+package com.g2one.hudson.grails;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * The memory the Grails processes of the builds running on a node may use at the same time,
+ * see {@link GrailsMemoryBudget}. Set on a node, or in the global node properties for all the
+ * nodes without their own.
+ */
+public class GrailsNodeProperty extends NodeProperty<Node> {
+
+    private final int memoryBudget;
+
+    @DataBoundConstructor
+    public GrailsNodeProperty(int memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * In megabytes, 0 or less for no limit.
+     */
+    public int getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends NodePropertyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Grails memory budget";
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.g2one.hudson.grails;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Hudson;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Recognizes a kind of {@link GrailsEvent} in the console output of Grails.
+ *
+ * Every pattern declares an ASCII keyword. {@link GrailsConsoleAnnotator} looks for the keywords
+ * of all patterns at once while the output streams by, and only hands the lines containing
+ * a pattern's keyword (ignoring case) to {@link #parse(String, long)}. Other plugins can
+ * contribute their own patterns with {@link Extension}.
+ */
+public abstract class GrailsOutputPattern implements ExtensionPoint {
+
+    private final String keyword;
+
+    protected GrailsOutputPattern(String keyword) {
+        this.keyword = keyword;
+    }
+
+    public String getKeyword() {
+        return keyword;
+    }
+
+    /**
+     * @param line      a console line containing the keyword, without its line terminator
+     * @param timestamp when the line was printed
+     * @return the event, or null if the line turns out not to be one
+     */
+    public abstract GrailsEvent parse(String line, long timestamp);
+
+    /**
+     * Emits an event for every line containing the keyword.
+     */
+    public static class Simple extends GrailsOutputPattern {
+
+        private final GrailsEvent.Type type;
+
+        public Simple(String keyword, GrailsEvent.Type type) {
+            super(keyword);
+            this.type = type;
+        }
+
+        @Override
+        public GrailsEvent parse(String line, long timestamp) {
+            return new GrailsEvent(type, timestamp, line.trim());
+        }
+    }
+
+    /**
+     * Emits an event for the lines matching a regular expression, whose groups are
+     * the count, the phase and the number of failures, in this order. The last two are optional.
+     */
+    public static class Counting extends GrailsOutputPattern {
+
+        private final GrailsEvent.Type type;
+        private final Pattern pattern;
+
+        public Counting(String keyword, GrailsEvent.Type type, String regex) {
+            super(keyword);
+            this.type = type;
+            this.pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+        }
+
+        @Override
+        public GrailsEvent parse(String line, long timestamp) {
+            Matcher m = pattern.matcher(line);
+            if (!m.find()) {
+                return null;
+            }
+            String phase = m.groupCount() >= 2 ? m.group(2) : null;
+            try {
+                int failures = m.groupCount() >= 3 && m.group(3) != null ? Integer.parseInt(m.group(3)) : -1;
+                return new GrailsEvent(type, timestamp, line.trim(), phase, Integer.parseInt(m.group(1)), failures);
+            } catch (NumberFormatException e) {
+                // a number too large to be a count, not what the pattern is about
+                return null;
+            }
+        }
+    }
+
+    @Extension
+    public static final GrailsOutputPattern DEPENDENCY_RESOLUTION = new Simple("resolving dependencies", GrailsEvent.Type.DEPENDENCY_RESOLUTION);
+
+    @Extension
+    public static final GrailsOutputPattern COMPILING = new Counting("compiling", GrailsEvent.Type.COMPILING, "compiling (\\d+)");
+
+    @Extension
+    public static final GrailsOutputPattern RUNNING_TESTS = new GrailsOutputPattern("running") {
+        private final Pattern pattern = Pattern.compile("running (\\d+) (\\w+) tests?(?:\\.\\.\\. (\\d+) of \\d+)?", Pattern.CASE_INSENSITIVE);
+
+        @Override
+        public GrailsEvent parse(String line, long timestamp) {
+            Matcher m = pattern.matcher(line);
+            if (!m.find()) {
+                return null;
+            }
+            try {
+                if (m.group(3) == null) {
+                    return new GrailsEvent(GrailsEvent.Type.RUNNING_TESTS, timestamp, line.trim(), m.group(2), Integer.parseInt(m.group(1)), -1);
+                }
+                return new GrailsEvent(GrailsEvent.Type.TEST_PROGRESS, timestamp, line.trim(), m.group(2), Integer.parseInt(m.group(3)), -1);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    };
+
+    @Extension
+    public static final GrailsOutputPattern COMPLETED_TESTS = new Counting("completed", GrailsEvent.Type.COMPLETED_TESTS, "completed (\\d+) (\\w+) tests?(?:, (\\d+) failed)?");
+
+    @Extension
+    public static final GrailsOutputPattern TESTS_PASSED = new Simple("tests passed", GrailsEvent.Type.TESTS_PASSED);
+
+    @Extension
+    public static final GrailsOutputPattern TESTS_FAILED = new Simple("tests failed", GrailsEvent.Type.TESTS_FAILED);
+
+    /**
+     * An error reported by Grails 2, <tt>| Error ...</tt>, or by Grails 1, <tt>Error executing script ...</tt>.
+     */
+    @Extension
+    public static final GrailsOutputPattern ERROR = new GrailsOutputPattern("error") {
+        @Override
+        public GrailsEvent parse(String line, long timestamp) {
+            return startsWithIgnoreCase(line, "| error") || startsWithIgnoreCase(line, "error executing script")
+                    ? new GrailsEvent(GrailsEvent.Type.ERROR, timestamp, line.trim()) : null;
+        }
+    };
+
+    @Extension
+    public static final GrailsOutputPattern BUILD_FAILED = new Simple("build failed", GrailsEvent.Type.BUILD_FAILED);
+
+    @Extension
+    public static final GrailsOutputPattern OUT_OF_MEMORY = new Simple("outofmemoryerror", GrailsEvent.Type.OUT_OF_MEMORY);
+
+    private static boolean startsWithIgnoreCase(String line, String prefix) {
+        return line.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    /**
+     * The patterns bundled with this plugin, for when Jenkins is not around.
+     */
+    public static List<GrailsOutputPattern> defaults() {
+        return Arrays.asList(DEPENDENCY_RESOLUTION, COMPILING, RUNNING_TESTS, COMPLETED_TESTS, TESTS_PASSED, TESTS_FAILED, ERROR, BUILD_FAILED, OUT_OF_MEMORY);
+    }
+
+    public static ExtensionList<GrailsOutputPattern> all() {
+        return Hudson.getInstance().getExtensionList(GrailsOutputPattern.class);
+    }
+}
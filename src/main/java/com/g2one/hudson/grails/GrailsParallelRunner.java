@@ -0,0 +1,212 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the targets of a {@link TargetGraph} as separate Grails processes, each one as soon
+ * as the targets it depends on have succeeded.
+ *
+ * The output of every process is buffered in a file of the build and copied to the console
+ * as one section, marked with a {@link GrailsTaskNote}, once the process is over, so that
+ * the output of concurrent targets doesn't get mixed up.
+ */
+final class GrailsParallelRunner {
+
+    private final Run<?, ?> build;
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final EnvVars env;
+    private final FilePath pwd;
+    private final List<? extends GrailsOutputPattern> patterns;
+    private final GrailsEventsAction events;
+    private final GrailsMemoryBudget.Admission admission;
+    private final GrailsPortAllocator ports;
+
+    /**
+     * @param ports where the server ports of the targets were leased from, or null
+     */
+    GrailsParallelRunner(Run<?, ?> build, Launcher launcher, TaskListener listener, EnvVars env, FilePath pwd,
+                         List<? extends GrailsOutputPattern> patterns, GrailsEventsAction events, GrailsMemoryBudget.Admission admission,
+                         GrailsPortAllocator ports) {
+        this.build = build;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.env = env;
+        this.pwd = pwd;
+        this.patterns = patterns;
+        this.events = events;
+        this.admission = admission;
+        this.ports = ports;
+    }
+
+    Result run(TargetGraph graph, List<ArgumentListBuilder> commands) throws IOException, InterruptedException {
+        return run(graph, commands, null);
+    }
+
+    /**
+     * @param commands    the command line of each target, by index
+     * @param serverPorts the server port leased for each target, by index, released when the target is over or skipped, or null
+     * @return the worst result of all targets: SUCCESS, UNSTABLE if tests failed, FAILURE, or
+     *         NOT_BUILT if targets were skipped because a target they depend on failed
+     */
+    Result run(TargetGraph graph, List<ArgumentListBuilder> commands, List<Integer> serverPorts) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+        List<TargetTask> tasks = new ArrayList<TargetTask>();
+        try {
+            Map<Integer, Future<Result>> futures = new HashMap<Integer, Future<Result>>();
+            for (TargetGraph.Target target : graph.getTargets()) {
+                List<Future<Result>> dependencies = new ArrayList<Future<Result>>();
+                for (int dependency : target.getDependencies()) {
+                    dependencies.add(futures.get(dependency));
+                }
+                TargetTask task = new TargetTask(target, commands.get(target.getIndex()),
+                        serverPorts == null ? null : serverPorts.get(target.getIndex()), dependencies);
+                tasks.add(task);
+                futures.put(target.getIndex(), executor.submit(task));
+            }
+
+            Result result = Result.SUCCESS;
+            for (Future<Result> future : futures.values()) {
+                result = result.combine(future.get());
+            }
+            return result;
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException("Failed to run Grails targets").initCause(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            // the ports of the targets that never ran
+            for (TargetTask task : tasks) {
+                task.releasePort();
+            }
+        }
+    }
+
+    private final class TargetTask implements Callable<Result> {
+
+        private final TargetGraph.Target target;
+        private final ArgumentListBuilder args;
+        private final Integer serverPort;
+        private final List<Future<Result>> dependencies;
+        private final AtomicBoolean portReleased = new AtomicBoolean();
+
+        TargetTask(TargetGraph.Target target, ArgumentListBuilder args, Integer serverPort, List<Future<Result>> dependencies) {
+            this.target = target;
+            this.args = args;
+            this.serverPort = serverPort;
+            this.dependencies = dependencies;
+        }
+
+        public Result call() throws Exception {
+            try {
+                return run();
+            } finally {
+                releasePort();
+            }
+        }
+
+        /**
+         * Releases the server port once, as it may have been leased again since.
+         */
+        void releasePort() {
+            if (serverPort != null && portReleased.compareAndSet(false, true)) {
+                ports.release(serverPort);
+            }
+        }
+
+        private Result run() throws Exception {
+            for (Future<Result> dependency : dependencies) {
+                if (dependency.get().isWorseThan(Result.UNSTABLE)) {
+                    synchronized (listener) {
+                        listener.getLogger().println("Skipping Grails target " + target.getLabel() + " because a target it depends on failed");
+                    }
+                    return Result.NOT_BUILT;
+                }
+            }
+
+            File buffer = File.createTempFile("grails-target", ".log", build.getRootDir());
+            try {
+                GrailsEventsAction targetEvents = new GrailsEventsAction();
+                GrailsConsoleAnnotator gca = new GrailsConsoleAnnotator(new FileOutputStream(buffer), build.getCharset(), patterns, targetEvents);
+                EnvVars targetEnv = env;
+                if (serverPort != null) {
+                    targetEnv = new EnvVars(env);
+                    targetEnv.put(GrailsPortAllocator.ENV_VAR, String.valueOf(serverPort));
+                }
+                GrailsTargetMonitor monitor = new GrailsTargetMonitor(launcher.getChannel(), targetEnv);
+                Result result;
+                IOException failure = null;
+                long queueTime = admission.enter(listener);
+                monitor.start();
+                try {
+                    int r = launcher.launch().cmds(args).envs(monitor.getEnvironment()).stdout(gca).pwd(pwd).join();
+                    if (r == 0) {
+                        result = Result.SUCCESS;
+                    } else {
+                        result = gca.isBuildFailingDueToFailingTests() ? Result.UNSTABLE : Result.FAILURE;
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    result = Result.FAILURE;
+                } finally {
+                    monitor.stop();
+                    admission.exit();
+                    gca.forceEol();
+                    gca.endTarget();
+                    gca.close();
+                }
+                events.merge(targetEvents);
+                GrailsTargetMetrics metrics = monitor.split(target.getLabel(), result);
+                metrics.setQueueTime(queueTime);
+
+                synchronized (listener) {
+                    PrintStream logger = listener.getLogger();
+                    long logStart = GrailsTargetsAction.logOffset(build, logger);
+                    new GrailsTaskNote(target.getLabel()).encodeTo(logger);
+                    InputStream in = new FileInputStream(buffer);
+                    try {
+                        IOUtils.copy(in, logger);
+                    } finally {
+                        in.close();
+                    }
+                    if (failure != null) {
+                        Util.displayIOException(failure, listener);
+                        failure.printStackTrace(listener.fatalError("command execution failed"));
+                    }
+                    GrailsMetricsNote.print(logger, metrics);
+                    logger.println("Grails target " + target.getLabel() + ": " + result);
+                    metrics.setLogRange(logStart, GrailsTargetsAction.logOffset(build, logger));
+                }
+                GrailsTargetsAction.record(build, metrics);
+                return result;
+            } finally {
+                buffer.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.g2one.hudson.grails;
+
+import hudson.model.Node;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Leases server ports to the Grails processes of the builds running on a node, so that
+ * concurrent builds running functional tests don't all start their application on 8080.
+ *
+ * A port is leased until the process using it is over. It is taken from a range,
+ * <tt>com.g2one.hudson.grails.GrailsPortAllocator.firstPort</tt> (9000 by default) and the
+ * <tt>com.g2one.hudson.grails.GrailsPortAllocator.count</tt> (1000) following ones, going round
+ * so that a port released is reused as late as possible, and only if nothing else on the node
+ * listens on it.
+ */
+final class GrailsPortAllocator {
+
+    static final String ENV_VAR = "GRAILS_SERVER_PORT";
+
+    static final int FIRST_PORT = Integer.getInteger(GrailsPortAllocator.class.getName() + ".firstPort", 9000);
+
+    static final int COUNT = Math.max(1, Integer.getInteger(GrailsPortAllocator.class.getName() + ".count", 1000));
+
+    private static final ConcurrentMap<String, GrailsPortAllocator> NODES = new ConcurrentHashMap<String, GrailsPortAllocator>();
+
+    private final VirtualChannel channel;
+    private final int firstPort;
+    private final int count;
+    private final Set<Integer> leased = new HashSet<Integer>();
+    private int next;
+
+    GrailsPortAllocator(VirtualChannel channel, int firstPort, int count) {
+        this.channel = channel;
+        this.firstPort = firstPort;
+        this.count = count;
+    }
+
+    /**
+     * The allocator of a node, whose ports are checked through the channel of the node.
+     */
+    static GrailsPortAllocator forNode(Node node, VirtualChannel channel) {
+        GrailsPortAllocator allocator = NODES.get(node.getNodeName());
+        if (allocator == null || allocator.channel != channel) {
+            // the node reconnected
+            GrailsPortAllocator newAllocator = new GrailsPortAllocator(channel, FIRST_PORT, COUNT);
+            if (allocator == null ? NODES.putIfAbsent(node.getNodeName(), newAllocator) == null
+                    : NODES.replace(node.getNodeName(), allocator, newAllocator)) {
+                return newAllocator;
+            }
+            allocator = NODES.get(node.getNodeName());
+        }
+        return allocator;
+    }
+
+    /**
+     * Leases a port nothing listens on.
+     */
+    int lease() throws IOException, InterruptedException {
+        for (int i = 0; i < count; i++) {
+            int port = reserve();
+            if (port < 0) {
+                break;
+            }
+            if (channel.call(new IsFree(port))) {
+                return port;
+            }
+            release(port);
+        }
+        throw new IOException("No free port from " + firstPort + " to " + (firstPort + count - 1));
+    }
+
+    /**
+     * Releases a port leased for a process that is over.
+     */
+    synchronized void release(int port) {
+        leased.remove(port);
+    }
+
+    synchronized Set<Integer> getLeased() {
+        return Collections.unmodifiableSet(new HashSet<Integer>(leased));
+    }
+
+    /**
+     * The next port not leased, or -1 if all of them are.
+     */
+    private synchronized int reserve() {
+        for (int i = 0; i < count; i++) {
+            int port = firstPort + next;
+            next = (next + 1) % count;
+            if (leased.add(port)) {
+                return port;
+            }
+        }
+        return -1;
+    }
+
+    private static final class IsFree implements Callable<Boolean, IOException> {
+
+        private final int port;
+
+        IsFree(int port) {
+            this.port = port;
+        }
+
+        public Boolean call() throws IOException {
+            ServerSocket socket;
+            try {
+                socket = new ServerSocket(port);
+            } catch (BindException e) {
+                return false;
+            }
+            socket.close();
+            return true;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,74 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.tools.InstallSourceProperty;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Installs the Grails installations that have installers on a node as soon as it comes online,
+ * in the background, so that the first build on a new node doesn't hold its executor while
+ * Grails is installed. A build starting meanwhile waits for the installation in progress,
+ * see {@link GrailsInstallationCache}.
+ *
+ * Off unless the <tt>com.g2one.hudson.grails.GrailsProvisioner.enabled</tt> system property is
+ * <tt>true</tt>. At most <tt>com.g2one.hudson.grails.GrailsProvisioner.concurrency</tt>
+ * installations, 2 by default, run at the same time over all the nodes.
+ */
+@Extension
+public class GrailsProvisioner extends ComputerListener {
+
+    static final boolean ENABLED = Boolean.getBoolean(GrailsProvisioner.class.getName() + ".enabled");
+
+    static final int CONCURRENCY = Math.max(1, Integer.getInteger(GrailsProvisioner.class.getName() + ".concurrency", 2));
+
+    private static final ExecutorService INSTALLS = Executors.newFixedThreadPool(CONCURRENCY, new DaemonThreadFactory());
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        if (ENABLED) {
+            provision(c);
+        }
+    }
+
+    static void provision(final Computer computer) {
+        final Node node = computer.getNode();
+        if (node == null) {
+            return;
+        }
+        GrailsInstallation[] installations = Hudson.getInstance().getDescriptorByType(GrailsInstallation.DescriptorImpl.class).getInstallations();
+        for (final GrailsInstallation installation : installations) {
+            if (installation.getProperties().get(InstallSourceProperty.class) == null) {
+                continue;
+            }
+            INSTALLS.submit(new Runnable() {
+                public void run() {
+                    TaskListener log = new LogTaskListener(LOGGER, Level.FINE);
+                    try {
+                        if (computer.isOffline()) {
+                            return;
+                        }
+                        EnvVars env = computer.getEnvironment();
+                        GrailsInstallation installed = GrailsInstallationCache.resolve(installation, env, node, log);
+                        LOGGER.info("Installed " + installation.getName() + " in " + installed.getHome() + " on " + node.getDisplayName());
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to install " + installation.getName() + " on " + node.getDisplayName(), e);
+                    }
+                }
+            });
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(GrailsProvisioner.class.getName());
+}
@@ -0,0 +1,235 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
+import hudson.console.ConsoleNote;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all targets of a build step in a single interactive Grails process.
+ *
+ * Grails is started once without a target, and each target is typed at its prompt in turn,
+ * so the JVM startup, plugin loading and dependency resolution are only paid for once.
+ * The end of a target is recognized by the prompt coming back, and its outcome by what
+ * {@link GrailsConsoleAnnotator} has seen in between.
+ */
+class GrailsSession {
+
+    static final String PROMPT = "grails> ";
+
+    private static final String EXIT = "exit";
+
+    private final Run<?, ?> build;
+    private final Launcher launcher;
+    private final TaskListener listener;
+
+    GrailsSession(Run<?, ?> build, Launcher launcher, TaskListener listener) {
+        this.build = build;
+        this.launcher = launcher;
+        this.listener = listener;
+    }
+
+    /**
+     * @param gca      the annotator to follow the output of Grails with
+     * @param args     the command line starting Grails in interactive mode
+     * @param commands  the targets with their arguments, one per line typed at the prompt, see {@link #commandLine}
+     * @param admission the memory budget the process waits for before starting
+     * @return false if a target failed for another reason than failing tests
+     */
+    boolean run(GrailsConsoleAnnotator gca, ArgumentListBuilder args, EnvVars env, FilePath pwd, List<String> commands,
+                GrailsMemoryBudget.Admission admission) throws IOException, InterruptedException {
+        long queueTime = admission.enter(listener);
+        try {
+            return run(gca, args, env, pwd, commands, queueTime);
+        } finally {
+            admission.exit();
+        }
+    }
+
+    private boolean run(GrailsConsoleAnnotator gca, ArgumentListBuilder args, EnvVars env, FilePath pwd, List<String> commands,
+                        long queueTime) throws IOException, InterruptedException {
+        PromptWatcher watcher = new PromptWatcher(gca, listener.getLogger(), build);
+        long logStart = GrailsTargetsAction.logOffset(build, listener.getLogger());
+        GrailsTargetMonitor monitor = new GrailsTargetMonitor(launcher.getChannel(), env);
+        Proc proc;
+        try {
+            proc = launcher.launch().cmds(args).envs(monitor.getEnvironment()).stdout(watcher).pwd(pwd).writeStdin().start();
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError("command execution failed"));
+            return false;
+        }
+        monitor.start();
+
+        OutputStream stdin = proc.getStdin();
+        try {
+            if (!watcher.awaitPrompt(proc)) {
+                listener.fatalError("Grails exited before it was ready to accept targets");
+                return false;
+            }
+            // the startup, and the wait for memory, are accounted for separately from the targets
+            GrailsTargetMetrics startup = monitor.split("(startup)", Result.SUCCESS);
+            startup.setQueueTime(queueTime);
+            record(watcher, startup, logStart);
+            for (String command : commands) {
+                String target = command.split(" ")[0];
+                logStart = watcher.mark(new GrailsTaskNote(target));
+                gca.reset();
+                send(stdin, command);
+                if (!watcher.awaitPrompt(proc)) {
+                    listener.fatalError("Grails exited while running " + command);
+                    return false;
+                }
+                gca.endTarget();
+                Result result = gca.isBuildFailingDueToFailingTests() ? Result.UNSTABLE
+                        : gca.isErrorReported() ? Result.FAILURE : Result.SUCCESS;
+                record(watcher, monitor.split(target, result), logStart);
+                if (result == Result.UNSTABLE) {
+                    build.setResult(Result.UNSTABLE);
+                } else if (result == Result.FAILURE) {
+                    send(stdin, EXIT);
+                    return false;
+                }
+            }
+            send(stdin, EXIT);
+            return proc.join() == 0;
+        } finally {
+            monitor.stop();
+            if (proc.isAlive()) {
+                proc.kill();
+            }
+            gca.forceEol();
+            gca.endTarget();
+        }
+    }
+
+    /**
+     * The line typed at the prompt for a target and its arguments. Grails splits the line at
+     * spaces like a shell does, so arguments with spaces or quotes are quoted.
+     */
+    static String commandLine(List<String> args) {
+        StringBuilder line = new StringBuilder();
+        for (String arg : args) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            if (arg.length() > 0 && !arg.matches(".*[\\s\"'].*")) {
+                line.append(arg);
+            } else if (arg.indexOf('"') < 0) {
+                line.append('"').append(arg).append('"');
+            } else {
+                // there is no escaping, an argument can't have both kinds of quotes
+                line.append('\'').append(arg).append('\'');
+            }
+        }
+        return line.toString();
+    }
+
+    private void record(PromptWatcher watcher, GrailsTargetMetrics metrics, long logStart) throws IOException {
+        metrics.setLogRange(logStart, watcher.summarize(metrics));
+        GrailsTargetsAction.record(build, metrics);
+    }
+
+    private void send(OutputStream stdin, String line) throws IOException {
+        stdin.write((line + "\n").getBytes(build.getCharset().name()));
+        stdin.flush();
+    }
+
+    /**
+     * Passes the output of Grails through to the annotator and counts how many times the
+     * interactive prompt has been printed. The prompt is not terminated by a newline,
+     * so it can't be found line by line.
+     */
+    private static final class PromptWatcher extends FilterOutputStream {
+
+        private final byte[] prompt = PROMPT.getBytes();
+        private final Semaphore prompts = new Semaphore(0);
+        private final GrailsConsoleAnnotator gca;
+        private final PrintStream logger;
+        private final Run<?, ?> build;
+        private int matched;
+
+        PromptWatcher(GrailsConsoleAnnotator gca, PrintStream logger, Run<?, ?> build) {
+            super(gca);
+            this.gca = gca;
+            this.logger = logger;
+            this.build = build;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            out.write(b);
+            scan((byte) b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            for (int i = off; i < off + len; i++) {
+                scan(b[i]);
+            }
+        }
+
+        private void scan(byte b) {
+            if (b == prompt[matched]) {
+                if (++matched == prompt.length) {
+                    matched = 0;
+                    prompts.release();
+                }
+            } else {
+                matched = b == prompt[0] ? 1 : 0;
+            }
+        }
+
+        /**
+         * Ends the pending line and writes the note before the output that follows.
+         *
+         * @return where the note starts in the log
+         */
+        synchronized long mark(ConsoleNote note) throws IOException {
+            gca.forceEol();
+            long offset = GrailsTargetsAction.logOffset(build, logger);
+            note.encodeTo(logger);
+            return offset;
+        }
+
+        /**
+         * Ends the pending line and prints the summary of a target.
+         *
+         * @return where the summary ends in the log
+         */
+        synchronized long summarize(GrailsTargetMetrics metrics) throws IOException {
+            gca.forceEol();
+            GrailsMetricsNote.print(logger, metrics);
+            return GrailsTargetsAction.logOffset(build, logger);
+        }
+
+        /**
+         * Waits until Grails prints its prompt.
+         *
+         * @return false if the process terminated instead
+         */
+        boolean awaitPrompt(Proc proc) throws IOException, InterruptedException {
+            while (!prompts.tryAcquire(1, TimeUnit.SECONDS)) {
+                if (!proc.isAlive()) {
+                    return prompts.tryAcquire();
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.g2one.hudson.grails;
+
+import hudson.Util;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.Serializable;
+
+/**
+ * What running a Grails target took: wall clock time, CPU time and peak resident memory
+ * of the processes it started.
+ *
+ * CPU time and memory are sampled by {@link GrailsTargetMonitor} and only known on nodes that
+ * have a <tt>/proc</tt> file system, they are -1 elsewhere. The time the target waited for the
+ * memory budget of the node before starting, see {@link GrailsMemoryBudget}, isn't part of its
+ * duration.
+ */
+@ExportedBean(defaultVisibility = 2)
+public class GrailsTargetMetrics implements Serializable {
+
+    private final String target;
+    private final String result;
+    private final long duration;
+    private final long cpuTime;
+    private final long peakMemory;
+    private long logStart;
+    private long logEnd;
+    private long queueTime;
+
+    public GrailsTargetMetrics(String target, String result, long duration, long cpuTime, long peakMemory) {
+        this.target = target;
+        this.result = result;
+        this.duration = duration;
+        this.cpuTime = cpuTime;
+        this.peakMemory = peakMemory;
+    }
+
+    @Exported
+    public String getTarget() {
+        return target;
+    }
+
+    @Exported
+    public String getResult() {
+        return result;
+    }
+
+    /**
+     * Wall clock time, in milliseconds.
+     */
+    @Exported
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * User and system CPU time of all processes, in milliseconds, or -1 if unknown.
+     */
+    @Exported
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * Peak resident memory of all processes, in bytes, or -1 if unknown.
+     */
+    @Exported
+    public long getPeakMemory() {
+        return peakMemory;
+    }
+
+    /**
+     * Where the output of the target starts in the log of the build, in bytes.
+     */
+    @Exported
+    public long getLogStart() {
+        return logStart;
+    }
+
+    /**
+     * Where the output of the target ends in the log of the build, in bytes, or 0 if unknown.
+     */
+    @Exported
+    public long getLogEnd() {
+        return logEnd;
+    }
+
+    /**
+     * How long the target waited for memory before starting, in milliseconds.
+     */
+    @Exported
+    public long getQueueTime() {
+        return queueTime;
+    }
+
+    void setQueueTime(long queueTime) {
+        this.queueTime = queueTime;
+    }
+
+    public boolean hasLogRange() {
+        return logEnd > logStart;
+    }
+
+    void setLogRange(long start, long end) {
+        this.logStart = start;
+        this.logEnd = end;
+    }
+
+    public String getDurationString() {
+        return Util.getTimeSpanString(duration);
+    }
+
+    public String getCpuTimeString() {
+        return cpuTime < 0 ? "N/A" : Util.getTimeSpanString(cpuTime);
+    }
+
+    public String getPeakMemoryString() {
+        return peakMemory < 0 ? "N/A" : (peakMemory / (1024 * 1024)) + " MB";
+    }
+
+    /**
+     * One line summary, as shown in the console.
+     */
+    @Exported
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(getDurationString());
+        if (cpuTime >= 0) {
+            summary.append(", CPU ").append(getCpuTimeString());
+        }
+        if (peakMemory >= 0) {
+            summary.append(", peak memory ").append(getPeakMemoryString());
+        }
+        if (queueTime > 0) {
+            summary.append(", waited ").append(Util.getTimeSpanString(queueTime)).append(" for memory");
+        }
+        return summary.toString();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,392 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import hudson.model.Result;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the CPU time and resident memory of the processes started for a Grails target.
+ *
+ * The processes are recognized by a cookie in their environment, which the Grails JVM inherits
+ * from the script starting it. Every {@link #INTERVAL} milliseconds, a thread in the JVM of the
+ * node searches its <tt>/proc</tt> file system for them, so that the sampling makes no remote calls;
+ * the node is only called when the monitor starts, splits and stops. CPU time is the sum of what
+ * each process used; peak memory is the highest total resident size seen, or the highest resident
+ * size the kernel recorded for a single process if that is more, as short peaks fall between
+ * samples. Both are unknown for a target that is over before the first sample.
+ *
+ * A process running several targets, as in session mode, is measured target by target with {@link #split}.
+ * A monitor is used by one thread at a time.
+ */
+final class GrailsTargetMonitor {
+
+    static final String COOKIE = "GRAILS_TARGET_COOKIE";
+
+    static final long INTERVAL = 1000;
+
+    /**
+     * The unit of the CPU times in <tt>/proc/[pid]/stat</tt> when <tt>getconf CLK_TCK</tt> can't tell,
+     * which is 100 on all common Linux configurations.
+     */
+    static final long DEFAULT_CLOCK_TICKS_PER_SECOND = 100;
+
+    /**
+     * The CPU time in milliseconds and peak memory in bytes when they aren't known.
+     */
+    private static final long[] UNKNOWN = {-1, -1};
+
+    private final VirtualChannel channel;
+    private final String cookie = UUID.randomUUID().toString();
+    private final EnvVars env;
+
+    private long splitStarted;
+    private boolean running;
+
+    /**
+     * What the processes took until the monitor was stopped, for the split after it.
+     */
+    private long[] stopped = UNKNOWN;
+
+    /**
+     * @param env the environment of the processes, which is copied to add the cookie
+     */
+    GrailsTargetMonitor(VirtualChannel channel, EnvVars env) {
+        this.channel = channel;
+        this.env = new EnvVars(env);
+        this.env.put(COOKIE, cookie);
+    }
+
+    /**
+     * The environment to start the processes to monitor with.
+     */
+    EnvVars getEnvironment() {
+        return env;
+    }
+
+    void start() {
+        splitStarted = System.currentTimeMillis();
+        running = true;
+        call(new Start(cookie));
+    }
+
+    void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        // an aborted build still stops the sampling on the node
+        boolean interrupted = Thread.interrupted();
+        try {
+            stopped = call(new Split(cookie, true));
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * What the processes took since the monitor was started or since the previous split.
+     */
+    GrailsTargetMetrics split(String target, Result result) {
+        long[] taken;
+        if (running) {
+            // catches up with a process that is still running, as in session mode
+            taken = call(new Split(cookie, false));
+        } else {
+            taken = stopped;
+            stopped = UNKNOWN;
+        }
+        long now = System.currentTimeMillis();
+        GrailsTargetMetrics metrics = new GrailsTargetMetrics(target, result.toString(), now - splitStarted, taken[0], taken[1]);
+        splitStarted = now;
+        return metrics;
+    }
+
+    private long[] call(Callable<long[], IOException> callable) {
+        try {
+            long[] taken = channel.call(callable);
+            return taken == null ? UNKNOWN : taken;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to sample Grails processes", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Starts sampling the processes with a cookie, on the node.
+     */
+    private static final class Start implements Callable<long[], IOException> {
+
+        private final String cookie;
+
+        Start(String cookie) {
+            this.cookie = cookie;
+        }
+
+        public long[] call() {
+            Sampler sampler = new Sampler(cookie);
+            Sampler.RUNNING.put(cookie, sampler);
+            sampler.schedule();
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Samples the processes with a cookie once more on the node, and returns what they took
+     * since the previous split, stopping the sampling if asked to.
+     */
+    private static final class Split implements Callable<long[], IOException> {
+
+        private final String cookie;
+        private final boolean stop;
+
+        Split(String cookie, boolean stop) {
+            this.cookie = cookie;
+            this.stop = stop;
+        }
+
+        public long[] call() {
+            Sampler sampler = stop ? Sampler.RUNNING.remove(cookie) : Sampler.RUNNING.get(cookie);
+            if (sampler == null) {
+                return UNKNOWN;
+            }
+            if (stop) {
+                sampler.cancel();
+            }
+            return sampler.split();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The sampling of the processes with a cookie, in the JVM of the node.
+     */
+    private static final class Sampler implements Runnable {
+
+        static final ConcurrentMap<String, Sampler> RUNNING = new ConcurrentHashMap<String, Sampler>();
+
+        private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+        /**
+         * The clock ticks per second of the node, or 0 until known.
+         */
+        private static volatile long clockTicksPerSecond;
+
+        private final String cookie;
+
+        /**
+         * The last CPU time, in clock ticks, and peak resident size, in kB, seen for each process.
+         */
+        private final Map<Integer, Long> cpuTicks = new HashMap<Integer, Long>();
+        private final Map<Integer, Long> highWaterMarks = new HashMap<Integer, Long>();
+
+        private boolean supported = true;
+        private boolean splitSampled;
+        private long splitCpuTicks;
+        private long splitPeak;
+        private ScheduledFuture<?> future;
+
+        Sampler(String cookie) {
+            this.cookie = cookie;
+        }
+
+        synchronized void schedule() {
+            future = EXECUTOR.scheduleWithFixedDelay(this, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void cancel() {
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        public void run() {
+            try {
+                sample();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Failed to sample Grails processes", e);
+            }
+        }
+
+        /**
+         * The CPU time in milliseconds and peak memory in bytes since the previous split.
+         */
+        synchronized long[] split() {
+            sample();
+            long ticks = sum(cpuTicks);
+            // without a sample of the processes, 0 would look like a measurement
+            long[] taken = supported && splitSampled
+                    ? new long[]{(ticks - splitCpuTicks) * 1000 / clockTicksPerSecond(), splitPeak * 1024}
+                    : UNKNOWN;
+            splitCpuTicks = ticks;
+            splitPeak = 0;
+            splitSampled = false;
+            return taken;
+        }
+
+        private synchronized void sample() {
+            if (!supported) {
+                return;
+            }
+            Map<Integer, long[]> processes = findProcesses(cookie);
+            if (processes == null) {
+                supported = false;
+                cancel();
+                return;
+            }
+            if (processes.isEmpty()) {
+                return;
+            }
+            splitSampled = true;
+            long resident = 0;
+            for (Map.Entry<Integer, long[]> process : processes.entrySet()) {
+                long[] values = process.getValue();
+                cpuTicks.put(process.getKey(), values[0]);
+                resident += values[1];
+                Long highWaterMark = highWaterMarks.put(process.getKey(), values[2]);
+                if (highWaterMark == null || values[2] > highWaterMark) {
+                    // the process reached a new peak since the previous sample
+                    splitPeak = Math.max(splitPeak, values[2]);
+                }
+            }
+            splitPeak = Math.max(splitPeak, resident);
+        }
+
+        private static long clockTicksPerSecond() {
+            long ticks = clockTicksPerSecond;
+            if (ticks == 0) {
+                ticks = GrailsTargetMonitor.clockTicksPerSecond();
+                clockTicksPerSecond = ticks;
+            }
+            return ticks;
+        }
+    }
+
+    private static long sum(Map<Integer, Long> values) {
+        long sum = 0;
+        for (long value : values.values()) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Finds the processes with a cookie on this machine.
+     *
+     * @return the CPU time in clock ticks, resident size and peak resident size in kB of each process
+     *         by pid, or null if there is no <tt>/proc</tt> file system
+     */
+    private static Map<Integer, long[]> findProcesses(String cookie) {
+        File proc = new File("/proc");
+        if (!new File(proc, "self/stat").exists()) {
+            return null;
+        }
+        String variable = COOKIE + "=" + cookie;
+        Map<Integer, long[]> processes = new HashMap<Integer, long[]>();
+        File[] dirs = proc.listFiles();
+        if (dirs == null) {
+            return processes;
+        }
+        for (File dir : dirs) {
+            int pid;
+            try {
+                pid = Integer.parseInt(dir.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            try {
+                if (!hasVariable(FileUtils.readFileToString(new File(dir, "environ")), variable)) {
+                    continue;
+                }
+                String status = FileUtils.readFileToString(new File(dir, "status"));
+                processes.put(pid, new long[]{
+                        cpuTicks(FileUtils.readFileToString(new File(dir, "stat"))),
+                        statusValue(status, "VmRSS:"),
+                        statusValue(status, "VmHWM:")});
+            } catch (IOException e) {
+                // the process is gone, or belongs to another user
+            }
+        }
+        return processes;
+    }
+
+    /**
+     * The clock ticks per second of this machine, from <tt>getconf CLK_TCK</tt>.
+     */
+    static long clockTicksPerSecond() {
+        try {
+            Process process = new ProcessBuilder("getconf", "CLK_TCK").redirectErrorStream(true).start();
+            String output;
+            try {
+                output = IOUtils.toString(process.getInputStream()).trim();
+            } finally {
+                process.getInputStream().close();
+            }
+            if (process.waitFor() == 0) {
+                long ticks = Long.parseLong(output);
+                if (ticks > 0) {
+                    return ticks;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to run getconf CLK_TCK", e);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.FINE, "Unexpected output of getconf CLK_TCK", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return DEFAULT_CLOCK_TICKS_PER_SECOND;
+    }
+
+    static boolean hasVariable(String environ, String variable) {
+        return environ.startsWith(variable + '\0') || environ.contains('\0' + variable + '\0') || environ.equals(variable);
+    }
+
+    /**
+     * The user and system CPU time from the content of <tt>/proc/[pid]/stat</tt>.
+     */
+    static long cpuTicks(String stat) {
+        // the command name in parentheses may contain spaces, the fields are counted from the state after it
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+    }
+
+    /**
+     * A value in kB from the content of <tt>/proc/[pid]/status</tt>, or 0 if it isn't there, as for kernel threads.
+     */
+    static long statusValue(String status, String name) {
+        for (String line : status.split("\n")) {
+            if (line.startsWith(name)) {
+                return Long.parseLong(line.substring(name.length()).trim().split("\\s+")[0]);
+            }
+        }
+        return 0;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(GrailsTargetMonitor.class.getName());
+}
@@ -0,0 +1,125 @@
+package com.g2one.hudson.grails;
+
+import hudson.console.PlainTextConsoleOutputStream;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Run;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What each Grails target of a build took, in the order the targets ended, and where its output
+ * is in the log of the build, so that the output of a single target can be read without the
+ * rest of the log. Available through the remote API at <tt>grailsTargets/api</tt>.
+ */
+@ExportedBean
+public class GrailsTargetsAction implements Action {
+
+    private final List<GrailsTargetMetrics> targets = new ArrayList<GrailsTargetMetrics>();
+
+    /**
+     * The build while it runs, null once loaded from disk.
+     */
+    private transient Run<?, ?> owner;
+
+    synchronized void add(GrailsTargetMetrics metrics) {
+        targets.add(metrics);
+    }
+
+    @Exported
+    public synchronized List<GrailsTargetMetrics> getTargets() {
+        return new ArrayList<GrailsTargetMetrics>(targets);
+    }
+
+    /**
+     * Whether targets may still be added, as the build is running.
+     */
+    @Exported
+    public boolean isBuilding() {
+        return owner != null && owner.isBuilding();
+    }
+
+    /**
+     * Sends the output of a target, <tt>?target=</tt> its index, as plain text.
+     */
+    public void doSection(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Run<?, ?> build = req.findAncestorObject(Run.class);
+        List<GrailsTargetMetrics> targets = getTargets();
+        int index;
+        try {
+            index = Integer.parseInt(req.getParameter("target"));
+        } catch (NumberFormatException e) {
+            index = -1;
+        }
+        if (build == null || index < 0 || index >= targets.size() || !targets.get(index).hasLogRange()) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        GrailsTargetMetrics target = targets.get(index);
+        rsp.setContentType("text/plain;charset=" + build.getCharset().name());
+        RandomAccessFile log = new RandomAccessFile(build.getLogFile(), "r");
+        try {
+            log.seek(target.getLogStart());
+            OutputStream out = new PlainTextConsoleOutputStream(rsp.getOutputStream());
+            byte[] buf = new byte[8192];
+            long remaining = target.getLogEnd() - target.getLogStart();
+            int len;
+            while (remaining > 0 && (len = log.read(buf, 0, (int) Math.min(buf.length, remaining))) > 0) {
+                out.write(buf, 0, len);
+                remaining -= len;
+            }
+            out.flush();
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * Where the log of a build ends, once what was printed is written out.
+     */
+    static long logOffset(Run<?, ?> build, PrintStream logger) {
+        logger.flush();
+        return build.getLogFile().length();
+    }
+
+    /**
+     * Records the metrics of a target on a build.
+     */
+    static void record(Run<?, ?> build, GrailsTargetMetrics metrics) {
+        GrailsTargetsAction action;
+        synchronized (build) {
+            action = build.getAction(GrailsTargetsAction.class);
+            if (action == null) {
+                action = new GrailsTargetsAction();
+                build.addAction(action);
+            }
+            action.owner = build;
+        }
+        action.add(metrics);
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Grails Targets";
+    }
+
+    public String getUrlName() {
+        return "grailsTargets";
+    }
+}
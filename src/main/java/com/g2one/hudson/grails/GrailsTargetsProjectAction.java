@@ -0,0 +1,182 @@
+package com.g2one.hudson.grails;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.util.ChartUtil;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ShiftedCategoryAxis;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Trend of what the Grails targets of a project took, build after build.
+ */
+public class GrailsTargetsProjectAction implements Action {
+
+    /**
+     * How many builds the trend covers.
+     */
+    static final int BUILDS = 30;
+
+    private final AbstractProject<?, ?> project;
+
+    public GrailsTargetsProjectAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    /**
+     * Whether any recent build recorded its targets.
+     */
+    public boolean hasData() {
+        return getLastBuildWithData() != null;
+    }
+
+    private AbstractBuild<?, ?> getLastBuildWithData() {
+        int count = 0;
+        for (AbstractBuild<?, ?> build = project.getLastBuild(); build != null && count < BUILDS; build = build.getPreviousBuild(), count++) {
+            if (build.getAction(GrailsTargetsAction.class) != null) {
+                return build;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Draws the trend of a metric: <tt>duration</tt> (the default), <tt>cpuTime</tt> or <tt>peakMemory</tt>,
+     * with a line per target.
+     */
+    public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        AbstractBuild<?, ?> last = getLastBuildWithData();
+        if (last == null) {
+            rsp.setStatus(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        final Metric metric = Metric.forName(req.getParameter("metric"));
+        new Graph(last.getTimestamp(), 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                return createChart(buildDataSet(metric), metric.unit);
+            }
+        }.doPng(req, rsp);
+    }
+
+    enum Metric {
+        DURATION("duration", "min") {
+            double value(GrailsTargetMetrics metrics) {
+                return metrics.getDuration() / 60000.0;
+            }
+        },
+        CPU_TIME("cpuTime", "CPU min") {
+            double value(GrailsTargetMetrics metrics) {
+                return metrics.getCpuTime() / 60000.0;
+            }
+        },
+        PEAK_MEMORY("peakMemory", "MB") {
+            double value(GrailsTargetMetrics metrics) {
+                return metrics.getPeakMemory() / (1024.0 * 1024.0);
+            }
+        };
+
+        private final String parameter;
+        private final String unit;
+
+        Metric(String parameter, String unit) {
+            this.parameter = parameter;
+            this.unit = unit;
+        }
+
+        /**
+         * The value of the metric, negative if unknown.
+         */
+        abstract double value(GrailsTargetMetrics metrics);
+
+        static Metric forName(String parameter) {
+            for (Metric metric : values()) {
+                if (metric.parameter.equals(parameter)) {
+                    return metric;
+                }
+            }
+            return DURATION;
+        }
+    }
+
+    /**
+     * Durations and CPU times of the targets run several times in a build are added up, peak memory is the highest.
+     */
+    private DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> buildDataSet(Metric metric) {
+        DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> data = new DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel>();
+        int count = 0;
+        for (AbstractBuild<?, ?> build = project.getLastBuild(); build != null && count < BUILDS; build = build.getPreviousBuild(), count++) {
+            GrailsTargetsAction action = build.getAction(GrailsTargetsAction.class);
+            if (action == null) {
+                continue;
+            }
+            Map<String, Double> values = new HashMap<String, Double>();
+            for (GrailsTargetMetrics metrics : action.getTargets()) {
+                double value = metric.value(metrics);
+                if (value < 0) {
+                    continue;
+                }
+                Double previous = values.get(metrics.getTarget());
+                if (previous == null) {
+                    values.put(metrics.getTarget(), value);
+                } else {
+                    values.put(metrics.getTarget(), metric == Metric.PEAK_MEMORY ? Math.max(previous, value) : previous + value);
+                }
+            }
+            ChartUtil.NumberOnlyBuildLabel label = new ChartUtil.NumberOnlyBuildLabel(build);
+            for (Map.Entry<String, Double> value : values.entrySet()) {
+                data.add(value.getValue(), value.getKey(), label);
+            }
+        }
+        return data;
+    }
+
+    private static JFreeChart createChart(DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> data, String unit) {
+        JFreeChart chart = ChartFactory.createLineChart(null, null, unit, data.build(), PlotOrientation.VERTICAL, true, true, false);
+        chart.setBackgroundPaint(Color.white);
+
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(Color.black);
+
+        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        plot.setDomainAxis(domainAxis);
+        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+        return chart;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Grails Targets Trend";
+    }
+
+    public String getUrlName() {
+        return "grailsTargets";
+    }
+}
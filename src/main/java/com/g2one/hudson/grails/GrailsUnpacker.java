@@ -0,0 +1,173 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.os.PosixAPI;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Unpacks Grails distributions on a node with several threads, and shares the files that
+ * are the same in several versions.
+ *
+ * Every file unpacked is stored by the SHA-1 of its content in a store on the node, and
+ * hard linked from there into the installation, so that a jar shipped with many versions
+ * takes disk space once. Where hard links aren't supported, as across file systems, the
+ * file is copied instead. Stored files are never modified. They are made read only, so that
+ * changing a file of one installation can't change the others.
+ */
+final class GrailsUnpacker {
+
+    static final int THREADS = Math.max(2, Math.min(8, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private GrailsUnpacker() {
+    }
+
+    /**
+     * @param archive the zip of the distribution
+     * @param target  the directory to unpack into, which must be empty
+     * @param store   the directory of the stored files
+     * @return the number of files that were already in the store
+     */
+    static int unpack(FilePath archive, FilePath target, FilePath store) throws IOException, InterruptedException {
+        return archive.act(new Unpack(target.getRemote(), store.getRemote()));
+    }
+
+    private static final class Unpack implements FilePath.FileCallable<Integer>, Serializable {
+
+        private final String target;
+        private final String store;
+
+        Unpack(String target, String store) {
+            this.target = target;
+            this.store = store;
+        }
+
+        public Integer invoke(File archive, VirtualChannel channel) throws IOException, InterruptedException {
+            final File targetDir = new File(target);
+            final File storeDir = new File(store);
+            if (!storeDir.mkdirs() && !storeDir.isDirectory()) {
+                throw new IOException("Failed to create " + storeDir);
+            }
+            String targetPath = targetDir.getCanonicalPath() + File.separator;
+            final ZipFile zip = new ZipFile(archive);
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS, new DaemonThreadFactory());
+            try {
+                List<Future<Boolean>> files = new ArrayList<Future<Boolean>>();
+                for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                    final ZipEntry entry = entries.nextElement();
+                    final File file = new File(targetDir, entry.getName());
+                    if (!file.getCanonicalPath().startsWith(targetPath)) {
+                        throw new IOException(entry.getName() + " is outside of " + targetDir);
+                    }
+                    // directories are created here, so that the threads don't race to create them
+                    File dir = entry.isDirectory() ? file : file.getParentFile();
+                    if (!dir.mkdirs() && !dir.isDirectory()) {
+                        throw new IOException("Failed to create " + dir);
+                    }
+                    if (!entry.isDirectory()) {
+                        files.add(executor.submit(new Callable<Boolean>() {
+                            public Boolean call() throws IOException, InterruptedException {
+                                return unpack(zip, entry, file, storeDir);
+                            }
+                        }));
+                    }
+                }
+                int shared = 0;
+                for (Future<Boolean> file : files) {
+                    if (file.get()) {
+                        shared++;
+                    }
+                }
+                return shared;
+            } catch (ExecutionException e) {
+                throw (IOException) new IOException("Failed to unpack " + archive).initCause(e.getCause());
+            } finally {
+                executor.shutdownNow();
+                zip.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Unpacks a file into the store, unless it is there already, and links it into the installation.
+     *
+     * @return whether the file was already in the store
+     */
+    private static boolean unpack(ZipFile zip, ZipEntry entry, File file, File store) throws IOException, InterruptedException {
+        File tmp = File.createTempFile("unpack", ".tmp", store);
+        String sha1;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            InputStream in = zip.getInputStream(entry);
+            try {
+                OutputStream out = new DigestOutputStream(new FileOutputStream(tmp), digest);
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            sha1 = Util.toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+
+        File object = new File(store, sha1);
+        boolean shared = object.exists();
+        if (shared) {
+            tmp.delete();
+        } else {
+            tmp.setReadOnly();
+            if (!tmp.renameTo(object)) {
+                // another installation stored it meanwhile
+                tmp.delete();
+                if (!object.exists()) {
+                    throw new IOException("Failed to store " + entry.getName() + " as " + object);
+                }
+            }
+        }
+        link(object, file);
+        return shared;
+    }
+
+    private static void link(File object, File file) throws IOException {
+        file.delete();
+        try {
+            if (PosixAPI.get().link(object.getAbsolutePath(), file.getAbsolutePath()) == 0) {
+                return;
+            }
+        } catch (LinkageError e) {
+            // no native support
+        } catch (RuntimeException e) {
+            // not supported on this platform
+        }
+        FileUtils.copyFile(object, file);
+    }
+}
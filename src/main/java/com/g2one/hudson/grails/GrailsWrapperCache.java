@@ -0,0 +1,147 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.Properties;
+
+/**
+ * The Grails distributions of the wrapper shared by all the workspaces of a node, so that
+ * builds using <tt>grailsw</tt> don't each download and unpack the version of their project.
+ *
+ * The version is the <tt>app.grails.version</tt> of <tt>application.properties</tt>, and the
+ * distribution is downloaded from the <tt>wrapper.dist.url</tt> of
+ * <tt>wrapper/grails-wrapper.properties</tt>, like the wrapper does. Distributions are unpacked
+ * in <tt>grails-cache/wrapper/&lt;version&gt;</tt> below the root directory of the node, sharing
+ * their files with the installed Grails versions, see {@link GrailsUnpacker}. A distribution is
+ * downloaded and unpacked while holding the {@link CacheLock} of its version, so that builds
+ * starting at the same time wait for it instead of downloading it again.
+ */
+final class GrailsWrapperCache {
+
+    static final String DEFAULT_DIST_URL = "http://dist.springframework.org.s3.amazonaws.com/release/GRAILS/";
+
+    private final FilePath root;
+
+    GrailsWrapperCache(FilePath root) {
+        this.root = root;
+    }
+
+    static GrailsWrapperCache forNode(Node node) throws IOException {
+        return new GrailsWrapperCache(CacheLock.getCacheRoot(node).child("wrapper"));
+    }
+
+    /**
+     * The home of the distribution of the wrapper of a project, downloaded if it isn't there yet.
+     *
+     * @return the home, or null if the project doesn't declare its Grails version
+     */
+    FilePath resolve(FilePath basePath, TaskListener listener) throws IOException, InterruptedException {
+        String home = root.act(new Resolve(basePath.getRemote(), listener));
+        return home == null ? null : new FilePath(root.getChannel(), home);
+    }
+
+    private static final class Resolve implements FilePath.FileCallable<String>, Serializable {
+
+        private final String basePath;
+        private final TaskListener listener;
+
+        Resolve(String basePath, TaskListener listener) {
+            this.basePath = basePath;
+            this.listener = listener;
+        }
+
+        public String invoke(final File root, VirtualChannel channel) throws IOException, InterruptedException {
+            final String version = load(new File(basePath, "application.properties")).getProperty("app.grails.version");
+            if (version == null || !version.matches("[\\w.-]+")) {
+                return null;
+            }
+            String distUrl = load(new File(basePath, "wrapper/grails-wrapper.properties")).getProperty("wrapper.dist.url", DEFAULT_DIST_URL);
+            if (!distUrl.endsWith("/")) {
+                distUrl += "/";
+            }
+            final URL url = new URL(distUrl + "grails-" + version + ".zip");
+            final File dir = new File(root, version);
+            final File home = new File(dir, "grails-" + version);
+            if (isInstalled(home)) {
+                return home.getPath();
+            }
+            return CacheLock.withLock(dir, new CacheLock.Body<String>() {
+                public String run() throws IOException, InterruptedException {
+                    if (isInstalled(home)) {
+                        // installed by another build meanwhile
+                        return home.getPath();
+                    }
+                    listener.getLogger().println("Downloading " + url + " to " + dir);
+                    install(url, dir, home, new File(root.getParentFile(), "distributions/objects"));
+                    return home.getPath();
+                }
+            });
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static boolean isInstalled(File home) {
+        return new File(home, ".installedFrom").exists();
+    }
+
+    private static void install(URL url, File dir, File home, File store) throws IOException, InterruptedException {
+        File part = new File(dir, home.getName() + ".zip.part");
+        GrailsDistributionCache.download(url, part, 0, -1, false);
+        try {
+            String expected = GrailsDistributionCache.getPublishedSha1(url, false);
+            if (expected != null && !expected.equalsIgnoreCase(GrailsDependencyCache.sha1(part))) {
+                throw new IOException("The SHA-1 of " + url + " isn't " + expected);
+            }
+            GrailsDistributionCache.checkZip(part);
+
+            File unpacked = new File(dir, home.getName() + ".tmp");
+            Util.deleteRecursive(unpacked);
+            Util.deleteRecursive(home);
+            GrailsUnpacker.unpack(new FilePath(part), new FilePath(unpacked), new FilePath(store));
+            File base = new File(unpacked, home.getName());
+            if (!base.isDirectory()) {
+                base = unpacked;
+            }
+            if (!base.renameTo(home)) {
+                throw new IOException("Failed to rename " + base + " to " + home);
+            }
+            Util.deleteRecursive(unpacked);
+        } finally {
+            part.delete();
+        }
+        // unzipping doesn't keep the permissions of the scripts
+        File[] scripts = new File(home, "bin").listFiles();
+        if (scripts != null) {
+            for (File script : scripts) {
+                script.setExecutable(true, false);
+            }
+        }
+        // written last, the distribution is only used once complete
+        FileUtils.writeStringToFile(new File(home, ".installedFrom"), url.toExternalForm(), "UTF-8");
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+}
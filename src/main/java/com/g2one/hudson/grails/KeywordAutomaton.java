@@ -0,0 +1,174 @@
+package com.g2one.hudson.grails;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Finds any number of ASCII keywords in raw console bytes in a single pass, ignoring case.
+ *
+ * This is an Aho-Corasick automaton compiled into a full transition table, so scanning
+ * a line costs one table lookup per byte no matter how many keywords there are, and
+ * nothing is allocated. Only valid for charsets in which ASCII text is encoded byte for
+ * byte, see {@link #isApplicable(Charset)}.
+ */
+final class KeywordAutomaton {
+
+    private static final int[] NONE = new int[0];
+
+    private final int size;
+    /**
+     * Next state by current state and input byte.
+     */
+    private final int[][] transitions;
+    /**
+     * Indexes of the keywords ending in each state, including those found through the failure links.
+     */
+    private final int[][] outputs;
+
+    KeywordAutomaton(List<String> keywords) {
+        this.size = keywords.size();
+
+        List<int[]> gotos = new ArrayList<int[]>();
+        List<int[]> matches = new ArrayList<int[]>();
+        gotos.add(newState());
+        matches.add(NONE);
+
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            if (keyword.length() == 0) {
+                throw new IllegalArgumentException("Empty keyword");
+            }
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = keyword.charAt(i);
+                if (c > 0x7f) {
+                    throw new IllegalArgumentException("Not an ASCII keyword: " + keyword);
+                }
+                int b = Character.toLowerCase(c);
+                if (gotos.get(state)[b] < 0) {
+                    gotos.get(state)[b] = gotos.size();
+                    gotos.add(newState());
+                    matches.add(NONE);
+                }
+                state = gotos.get(state)[b];
+            }
+            matches.set(state, append(matches.get(state), k));
+        }
+
+        // breadth first, so the failure state of every state is complete before it is used
+        int[] failure = new int[gotos.size()];
+        int[] root = gotos.get(0);
+        Queue<Integer> queue = new LinkedList<Integer>();
+        for (int b = 0; b < 256; b++) {
+            if (root[b] < 0) {
+                root[b] = 0;
+            } else {
+                queue.add(root[b]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            int[] next = gotos.get(state);
+            for (int b = 0; b < 256; b++) {
+                int fallback = gotos.get(failure[state])[b];
+                if (next[b] < 0) {
+                    next[b] = fallback;
+                } else {
+                    failure[next[b]] = fallback;
+                    matches.set(next[b], union(matches.get(next[b]), matches.get(fallback)));
+                    queue.add(next[b]);
+                }
+            }
+        }
+
+        // fold case, so that upper case input follows the lower case transitions
+        for (int[] next : gotos) {
+            for (int b = 'A'; b <= 'Z'; b++) {
+                next[b] = next[Character.toLowerCase(b)];
+            }
+        }
+        this.transitions = gotos.toArray(new int[gotos.size()][]);
+        this.outputs = matches.toArray(new int[matches.size()][]);
+    }
+
+    /**
+     * Number of keywords this automaton looks for.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Marks the keywords found in {@code b[0..len)}.
+     *
+     * @param found one flag per keyword, set to true for those found and left untouched for the others
+     * @return whether any keyword was found
+     */
+    boolean scan(byte[] b, int len, boolean[] found) {
+        boolean any = false;
+        int state = 0;
+        for (int i = 0; i < len; i++) {
+            state = transitions[state][b[i] & 0xff];
+            int[] out = outputs[state];
+            if (out.length > 0) {
+                for (int k : out) {
+                    found[k] = true;
+                }
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    private static int[] newState() {
+        int[] next = new int[256];
+        Arrays.fill(next, -1);
+        return next;
+    }
+
+    private static int[] append(int[] a, int k) {
+        int[] r = Arrays.copyOf(a, a.length + 1);
+        r[a.length] = k;
+        return r;
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] r = a;
+        for (int k : b) {
+            if (!contains(r, k)) {
+                r = append(r, k);
+            }
+        }
+        return r;
+    }
+
+    private static boolean contains(int[] a, int k) {
+        for (int i : a) {
+            if (i == k) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether ASCII text is encoded byte for byte in the given charset, as in UTF-8 and the ISO-8859 family.
+     */
+    static boolean isApplicable(Charset charset) {
+        String probe = "| Tests FAILED - az";
+        byte[] encoded = probe.getBytes(charset);
+        if (encoded.length != probe.length()) {
+            return false;
+        }
+        for (int i = 0; i < encoded.length; i++) {
+            if (encoded[i] != probe.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
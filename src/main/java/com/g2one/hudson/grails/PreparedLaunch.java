@@ -0,0 +1,77 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * What a build needs to know about the node before starting Grails, found out in a single
+ * call to the node: the path of the workspace, whether the Grails executable is there and
+ * whether the project is built with Gradle.
+ */
+final class PreparedLaunch implements Serializable {
+
+    private final String workspacePath;
+    private final boolean executableFound;
+    private final boolean gradleProject;
+
+    PreparedLaunch(String workspacePath, boolean executableFound, boolean gradleProject) {
+        this.workspacePath = workspacePath;
+        this.executableFound = executableFound;
+        this.gradleProject = gradleProject;
+    }
+
+    /**
+     * @param workspace  the workspace of the build
+     * @param basePath   the base directory of the Grails project
+     * @param executable the path of the Grails executable to look for, or null if it is found on the <tt>PATH</tt>
+     */
+    static PreparedLaunch prepare(FilePath workspace, FilePath basePath, String executable) throws IOException, InterruptedException {
+        return workspace.act(new Prepare(basePath.getRemote(), executable));
+    }
+
+    /**
+     * The path of the workspace, as a URI path.
+     */
+    String getWorkspacePath() {
+        return workspacePath;
+    }
+
+    /**
+     * Whether the Grails executable exists, always true if it is looked up on the <tt>PATH</tt>.
+     */
+    boolean isExecutableFound() {
+        return executableFound;
+    }
+
+    /**
+     * Whether the base directory has a <tt>build.gradle</tt>.
+     */
+    boolean isGradleProject() {
+        return gradleProject;
+    }
+
+    private static final class Prepare implements FilePath.FileCallable<PreparedLaunch>, Serializable {
+
+        private final String basePath;
+        private final String executable;
+
+        Prepare(String basePath, String executable) {
+            this.basePath = basePath;
+            this.executable = executable;
+        }
+
+        public PreparedLaunch invoke(File workspace, VirtualChannel channel) throws IOException {
+            return new PreparedLaunch(workspace.toURI().getPath(),
+                    executable == null || new File(executable).exists(),
+                    new File(basePath, "build.gradle").exists());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
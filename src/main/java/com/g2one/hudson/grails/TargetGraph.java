@@ -0,0 +1,175 @@
+package com.g2one.hudson.grails;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The targets of a build step with the dependencies declared between them.
+ *
+ * A target lists the targets it depends on after {@value #DEPENDS_ON}, separated by commas,
+ * for example <tt>"war target/app.war &lt;- test-app,codenarc"</tt>. Dependencies refer to
+ * other targets by name (the first word of the entry). Targets without dependencies can start
+ * right away.
+ */
+final class TargetGraph {
+
+    static final String DEPENDS_ON = "<-";
+
+    /**
+     * A target with its arguments and the targets it waits for.
+     */
+    static final class Target {
+
+        private final int index;
+        private final String[] targetAndArgs;
+        private final Set<Integer> dependencies = new TreeSet<Integer>();
+        private String label;
+
+        Target(int index, String[] targetAndArgs) {
+            this.index = index;
+            this.targetAndArgs = targetAndArgs;
+        }
+
+        int getIndex() {
+            return index;
+        }
+
+        String getName() {
+            return targetAndArgs[0];
+        }
+
+        /**
+         * How the target is referred to in the console.
+         */
+        String getLabel() {
+            return label != null ? label : getName();
+        }
+
+        String[] getTargetAndArgs() {
+            return targetAndArgs;
+        }
+
+        /**
+         * Indexes of the targets this one depends on.
+         */
+        Set<Integer> getDependencies() {
+            return Collections.unmodifiableSet(dependencies);
+        }
+    }
+
+    private final List<Target> targets;
+
+    private TargetGraph(List<Target> targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * Targets in an order in which every target comes after its dependencies.
+     */
+    List<Target> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    /**
+     * The targets with their arguments, without their dependencies, in the order of {@link #getTargets()}.
+     */
+    List<String[]> getTargetsAndArgs() {
+        List<String[]> targetsAndArgs = new ArrayList<String[]>();
+        for (Target target : targets) {
+            targetsAndArgs.add(target.getTargetAndArgs());
+        }
+        return targetsAndArgs;
+    }
+
+    /**
+     * @param targetsToRun  the evaluated targets, split on spaces
+     * @param firstIsBarrier whether all the other targets depend on the first one, as for the <tt>upgrade</tt> target
+     * @throws IllegalArgumentException if a dependency is unknown or the dependencies form a cycle
+     */
+    static TargetGraph parse(List<String[]> targetsToRun, boolean firstIsBarrier) {
+        List<Target> targets = new ArrayList<Target>();
+        List<String[]> dependencyNames = new ArrayList<String[]>();
+        for (String[] pieces : targetsToRun) {
+            int arrow = Arrays.asList(pieces).indexOf(DEPENDS_ON);
+            if (arrow == 0) {
+                throw new IllegalArgumentException("Missing target before " + DEPENDS_ON + " in " + Arrays.toString(pieces));
+            }
+            if (arrow < 0) {
+                targets.add(new Target(targets.size(), pieces));
+                dependencyNames.add(new String[0]);
+            } else {
+                targets.add(new Target(targets.size(), Arrays.copyOfRange(pieces, 0, arrow)));
+                StringBuilder names = new StringBuilder();
+                for (int i = arrow + 1; i < pieces.length; i++) {
+                    names.append(pieces[i]).append(',');
+                }
+                dependencyNames.add(names.toString().split(","));
+            }
+        }
+
+        for (Target target : targets) {
+            if (firstIsBarrier && target.index > 0) {
+                target.dependencies.add(0);
+            }
+            for (String name : dependencyNames.get(target.index)) {
+                name = name.trim();
+                if (name.length() == 0) {
+                    continue;
+                }
+                boolean found = false;
+                for (Target other : targets) {
+                    if (other != target && other.getName().equals(name)) {
+                        target.dependencies.add(other.index);
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    throw new IllegalArgumentException("Target " + target.getName() + " depends on unknown target " + name);
+                }
+            }
+        }
+
+        return new TargetGraph(sort(targets));
+    }
+
+    /**
+     * Independent targets running parts of the same target, labelled by their position.
+     */
+    static TargetGraph shards(List<String[]> shards) {
+        List<Target> targets = new ArrayList<Target>();
+        for (String[] targetAndArgs : shards) {
+            Target target = new Target(targets.size(), targetAndArgs);
+            target.label = target.getName() + " [shard " + (target.index + 1) + "/" + shards.size() + "]";
+            targets.add(target);
+        }
+        return new TargetGraph(targets);
+    }
+
+    private static List<Target> sort(List<Target> targets) {
+        List<Target> sorted = new ArrayList<Target>();
+        int[] state = new int[targets.size()]; // 0: unvisited, 1: visiting, 2: done
+        for (Target target : targets) {
+            visit(target, targets, state, sorted);
+        }
+        return sorted;
+    }
+
+    private static void visit(Target target, List<Target> targets, int[] state, List<Target> sorted) {
+        if (state[target.index] == 2) {
+            return;
+        }
+        if (state[target.index] == 1) {
+            throw new IllegalArgumentException("Cyclic dependency on target " + target.getName());
+        }
+        state[target.index] = 1;
+        for (int dependency : target.dependencies) {
+            visit(targets.get(dependency), targets, state, sorted);
+        }
+        state[target.index] = 2;
+        sorted.add(target);
+    }
+}
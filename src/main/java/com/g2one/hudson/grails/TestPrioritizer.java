@@ -0,0 +1,123 @@
+package com.g2one.hudson.grails;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.scm.ChangeLogSet;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.TestResultAction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the tests most likely to fail, so that they can run before all the others: the tests
+ * that failed in the last build with test results, then the tests affected by the changes of
+ * the build, that is the changed test classes and the tests of the changed classes.
+ *
+ * Tests are identified by the patterns of {@link TestSharding}.
+ */
+final class TestPrioritizer {
+
+    /**
+     * How many earlier builds are searched for test results.
+     */
+    private static final int HISTORY = 10;
+
+    private TestPrioritizer() {
+    }
+
+    /**
+     * @param tests the patterns of the tests of the project
+     * @return the tests to run first, those which failed before first, and the quickest first in each group
+     */
+    static List<String> prioritize(Run<?, ?> build, List<String> tests) {
+        Map<String, Float> durations = TestSharding.getDurations(build);
+        List<String> failed = sort(select(tests, getFailedTests(build)), durations);
+        List<String> changed = sort(select(tests, getChangedTests(build, tests)), durations);
+        Set<String> prioritized = new LinkedHashSet<String>(failed);
+        prioritized.addAll(changed);
+        return new ArrayList<String>(prioritized);
+    }
+
+    static Set<String> getFailedTests(Run<?, ?> build) {
+        Set<String> failed = new LinkedHashSet<String>();
+        Run<?, ?> previous = build.getPreviousBuild();
+        for (int i = 0; previous != null && i < HISTORY; i++, previous = previous.getPreviousBuild()) {
+            TestResultAction action = previous.getAction(TestResultAction.class);
+            if (action == null) {
+                continue;
+            }
+            for (CaseResult result : action.getFailedTests()) {
+                String pattern = TestSharding.toPattern(result.getClassName());
+                if (pattern != null) {
+                    failed.add(pattern);
+                }
+            }
+            break;
+        }
+        return failed;
+    }
+
+    static Set<String> getChangedTests(Run<?, ?> build, List<String> tests) {
+        List<String> paths = new ArrayList<String>();
+        if (build instanceof AbstractBuild) {
+            // only builds of projects with an SCM have changes
+            for (ChangeLogSet.Entry entry : ((AbstractBuild<?, ?>) build).getChangeSet()) {
+                paths.addAll(entry.getAffectedPaths());
+            }
+        }
+        return getChangedTests(paths, tests);
+    }
+
+    /**
+     * The tests whose class, or the class they test, is in one of the given paths.
+     */
+    static Set<String> getChangedTests(List<String> paths, List<String> tests) {
+        Set<String> changed = new LinkedHashSet<String>();
+        for (String path : paths) {
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            int dot = name.lastIndexOf('.');
+            if (dot <= 0 || !(name.endsWith(".groovy") || name.endsWith(".java"))) {
+                continue;
+            }
+            String className = name.substring(0, dot);
+            String pattern = TestSharding.toPattern(className);
+            String simpleName = pattern != null ? pattern : className;
+            for (String test : tests) {
+                if (test.equals(simpleName) || test.endsWith("." + simpleName)) {
+                    changed.add(test);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static List<String> select(List<String> tests, Set<String> selected) {
+        List<String> result = new ArrayList<String>();
+        for (String test : tests) {
+            if (selected.contains(test)) {
+                result.add(test);
+            }
+        }
+        return result;
+    }
+
+    private static List<String> sort(List<String> tests, final Map<String, Float> durations) {
+        Collections.sort(tests, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return Float.compare(duration(a), duration(b));
+            }
+
+            private float duration(String test) {
+                Float duration = durations.get(test);
+                return duration == null ? 0 : duration;
+            }
+        });
+        return tests;
+    }
+}
@@ -0,0 +1,194 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.junit.ClassResult;
+import hudson.tasks.junit.PackageResult;
+import hudson.tasks.junit.TestResultAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Splits the tests of a <tt>test-app</tt> target into shards that take about as long to run,
+ * based on the durations the test classes took in earlier builds.
+ *
+ * Tests are passed to Grails as patterns, the class names without their <tt>Tests</tt>,
+ * <tt>Test</tt> or <tt>Spec</tt> suffix, which is how <tt>test-app</tt> selects them.
+ */
+final class TestSharding {
+
+    static final String TEST_APP = "test-app";
+
+    /**
+     * Where the test classes of Grails 1.x/2.x and of Gradle based Grails projects are.
+     */
+    static final String[] TEST_DIRS = {"test/unit", "test/integration", "test/functional",
+            "src/test/groovy", "src/test/java", "src/integration-test/groovy"};
+
+    private static final String[] SUFFIXES = {"Tests", "Test", "Spec"};
+
+    /**
+     * How many earlier builds are searched for test results.
+     */
+    private static final int HISTORY = 10;
+
+    private TestSharding() {
+    }
+
+    /**
+     * Whether a target runs all the tests, possibly of some phases only, so that they can be split.
+     * A target already selecting tests by pattern is left as it is.
+     */
+    static boolean isShardable(String[] targetAndArgs) {
+        if (!TEST_APP.equals(targetAndArgs[0])) {
+            return false;
+        }
+        for (int i = 1; i < targetAndArgs.length; i++) {
+            String arg = targetAndArgs[i];
+            if (!arg.startsWith("-") && !arg.endsWith(":")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The pattern selecting a test class, or null if the name isn't one of a test class.
+     */
+    static String toPattern(String className) {
+        for (String suffix : SUFFIXES) {
+            if (className.endsWith(suffix) && className.length() > suffix.length()) {
+                return className.substring(0, className.length() - suffix.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The patterns of the test classes found in a project.
+     */
+    static List<String> findTests(FilePath baseDir) throws IOException, InterruptedException {
+        return baseDir.act(new FindTests());
+    }
+
+    private static final class FindTests implements FilePath.FileCallable<List<String>>, Serializable {
+
+        public List<String> invoke(File base, VirtualChannel channel) throws IOException {
+            TreeSet<String> patterns = new TreeSet<String>();
+            for (String dir : TEST_DIRS) {
+                findTests(new File(base, dir), "", patterns);
+            }
+            return new ArrayList<String>(patterns);
+        }
+
+        private void findTests(File dir, String pkg, TreeSet<String> patterns) {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File child : children) {
+                String name = child.getName();
+                if (child.isDirectory()) {
+                    findTests(child, pkg + name + ".", patterns);
+                } else if (name.endsWith(".groovy") || name.endsWith(".java")) {
+                    String pattern = toPattern(name.substring(0, name.lastIndexOf('.')));
+                    if (pattern != null) {
+                        patterns.add(pkg + pattern);
+                    }
+                }
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The time the tests selected by each pattern took in the last build with test results, in seconds.
+     */
+    static Map<String, Float> getDurations(Run<?, ?> build) {
+        Map<String, Float> durations = new HashMap<String, Float>();
+        Run<?, ?> previous = build.getPreviousBuild();
+        for (int i = 0; previous != null && i < HISTORY; i++, previous = previous.getPreviousBuild()) {
+            TestResultAction action = previous.getAction(TestResultAction.class);
+            if (action == null) {
+                continue;
+            }
+            for (PackageResult pkg : action.getResult().getChildren()) {
+                for (ClassResult cls : pkg.getChildren()) {
+                    String pattern = toPattern(cls.getFullName());
+                    if (pattern != null) {
+                        Float duration = durations.get(pattern);
+                        durations.put(pattern, (duration == null ? 0 : duration) + cls.getDuration());
+                    }
+                }
+            }
+            break;
+        }
+        return durations;
+    }
+
+    /**
+     * Splits the tests into at most the given number of shards, taking the longest tests first and
+     * adding each one to the shard that is the quickest so far. Tests without a recorded duration
+     * are assumed to take as long as the average test.
+     *
+     * @return the non empty shards, each with the patterns of its tests in name order
+     */
+    static List<List<String>> split(List<String> patterns, final Map<String, Float> durations, int count) {
+        float known = 0;
+        int knownCount = 0;
+        for (String pattern : patterns) {
+            Float duration = durations.get(pattern);
+            if (duration != null) {
+                known += duration;
+                knownCount++;
+            }
+        }
+        final float average = knownCount == 0 ? 1 : known / knownCount;
+
+        List<String> sorted = new ArrayList<String>(patterns);
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int c = Float.compare(duration(b), duration(a));
+                return c != 0 ? c : a.compareTo(b);
+            }
+
+            private float duration(String pattern) {
+                Float duration = durations.get(pattern);
+                return duration == null ? average : duration;
+            }
+        });
+
+        int shardCount = Math.min(count, patterns.size());
+        List<List<String>> shards = new ArrayList<List<String>>();
+        float[] totals = new float[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<String>());
+        }
+        for (String pattern : sorted) {
+            int quickest = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (totals[i] < totals[quickest]) {
+                    quickest = i;
+                }
+            }
+            Float duration = durations.get(pattern);
+            totals[quickest] += duration == null ? average : duration;
+            shards.get(quickest).add(pattern);
+        }
+        for (List<String> shard : shards) {
+            Collections.sort(shard);
+        }
+        return shards;
+    }
+}
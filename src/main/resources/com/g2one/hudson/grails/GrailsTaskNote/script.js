@@ -4,31 +4,77 @@
     var loading = false;
 
     var queue = []; // grails targets are queued up until we load outline.
+    var last = null; // outline entry of the last target, where its metrics go
+    var indexed = false; // whether the outline was made from the targets recorded on a completed build
+
+    // the build of the console, whose targets link to their part of the log
+    var build = document.location.pathname.match(/^(.*\/)console(Full)?$/);
 
     function loadOutline() {
         if (outline != null)  return false;   // already loaded
 
         if (!loading) {
             loading = true;
-            var u = new Ajax.Updater(document.getElementById("side-panel"),
-                rootURL + "/descriptor/com.g2one.hudson.grails.GrailsTaskNote/outline",
-                {insertion: Insertion.Bottom, onComplete: function() {
-                    if (!u.success())   return; // we can't us onSuccess because that kicks in before onComplete
-                    outline = document.getElementById("grails-console-outline-body");
-                    loading = false;
-                    queue.each(handle);
-                }});
+            if (build == null) {
+                insertOutline(null);
+            } else {
+                new Ajax.Request(build[1] + "grailsTargets/api/json?tree=building,targets[target,summary,logStart,logEnd]",
+                    {method: "get", onComplete: function(rsp) {
+                        var index = null;
+                        if (rsp.status == 200) {
+                            index = rsp.responseText.evalJSON();
+                            if (index.building)  index = null; // targets are still to come
+                        }
+                        insertOutline(index);
+                    }});
+            }
         }
         return true;
     }
 
+    function insertOutline(index) {
+        var u = new Ajax.Updater(document.getElementById("side-panel"),
+            rootURL + "/descriptor/com.g2one.hudson.grails.GrailsTaskNote/outline",
+            {insertion: Insertion.Bottom, onComplete: function() {
+                if (!u.success())   return; // we can't us onSuccess because that kicks in before onComplete
+                outline = document.getElementById("grails-console-outline-body");
+                loading = false;
+                if (index != null) {
+                    indexed = true;
+                    index.targets.each(addTarget);
+                }
+                queue.each(handle);
+            }});
+    }
+
+    // an entry showing only the part of the log of the target, so that huge logs needn't be rendered
+    function addTarget(t, i) {
+        var li = document.createElement("li");
+        if (t.logEnd > t.logStart) {
+            var a = document.createElement("a");
+            a.setAttribute("href", build[1] + "grailsTargets/section?target=" + i);
+            a.appendChild(document.createTextNode(t.target));
+            li.appendChild(a);
+        } else {
+            li.appendChild(document.createTextNode(t.target));
+        }
+        li.appendChild(document.createTextNode(" (" + t.summary + ")"));
+        outline.appendChild(li);
+    }
+
     function handle(e) {
         if (loadOutline()) {
             queue.push(e);
+        } else if (indexed) {
+            // already in the outline
+        } else if (e.getAttribute('data_grails_metrics') != null) {
+            if (last != null)
+                last.appendChild(document.createTextNode(" (" + e.getAttribute('data_grails_metrics') + ")"));
         } else {
             var id = "grails-target-" + (iota++);
             console.log(e)
-            outline.appendChild(parseHtml("<li><a href='#" + id + "'>" + e.getAttribute('data_grails_target') + "</a></li>"))
+            last = parseHtml("<li><a href='#" + id + "'>" + e.getAttribute('data_grails_target') + "</a></li>");
+            outline.appendChild(last);
 
             if (document.all)
                 e.innerHTML += '<a name="' + id + '"/>';  // IE8 loses "name" attr in appendChild
@@ -44,6 +90,10 @@
         // insert <a name="..."> for each Gradle task and put it into the outline
         "span[data_grails_target]" : function(e) {
             handle(e);
+        },
+        // and what it took next to it
+        "span[data_grails_metrics]" : function(e) {
+            handle(e);
         }
     });
 }());
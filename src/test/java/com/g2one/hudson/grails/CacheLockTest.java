@@ -0,0 +1,70 @@
+package com.g2one.hudson.grails;
+
+import hudson.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+
+public class CacheLockTest {
+
+    private File dir;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Util.createTempDir();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void monitor_per_directory() throws Exception {
+        File cache = new File(dir, "cache");
+        assertThat(CacheLock.monitor(cache), sameInstance(CacheLock.monitor(new File(dir, "other/../cache"))));
+        assertThat(CacheLock.monitor(cache), not(sameInstance(CacheLock.monitor(new File(dir, "other")))));
+    }
+
+    @Test
+    public void different_directories_dont_wait_for_each_other() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Future<Boolean> slow = executor.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return CacheLock.withLock(new File(dir, "wrapper"), new CacheLock.Body<Boolean>() {
+                    public Boolean run() throws InterruptedException {
+                        locked.countDown();
+                        return done.await(10, TimeUnit.SECONDS);
+                    }
+                });
+            }
+        });
+        locked.await();
+        Boolean other = CacheLock.withLock(new File(dir, "compile"), new CacheLock.Body<Boolean>() {
+            public Boolean run() {
+                return true;
+            }
+        });
+        assertThat(other, is(true));
+        done.countDown();
+        assertThat(slow.get(), is(true));
+    }
+}
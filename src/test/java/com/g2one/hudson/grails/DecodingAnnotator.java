@@ -0,0 +1,37 @@
+package com.g2one.hudson.grails;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The annotator as it was before matching on raw bytes, decoding and lower casing every line,
+ * to compare {@link GrailsConsoleAnnotator} with.
+ */
+final class DecodingAnnotator extends LineTransformationOutputStream {
+
+    private final OutputStream out;
+    private final Charset charset;
+    private boolean testFailed;
+
+    DecodingAnnotator(OutputStream out, Charset charset) {
+        this.out = out;
+        this.charset = charset;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        String line = trimEOL(charset.decode(ByteBuffer.wrap(b, 0, len)).toString());
+        if (line.toLowerCase().contains("tests failed")) {
+            testFailed = true;
+        }
+        out.write(b, 0, len);
+    }
+
+    boolean isBuildFailingDueToFailingTests() {
+        return testFailed;
+    }
+}
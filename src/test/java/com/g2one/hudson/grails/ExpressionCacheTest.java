@@ -0,0 +1,60 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class ExpressionCacheTest {
+
+    @Test
+    public void evaluate_plain() {
+        ExpressionCache cache = new ExpressionCache(2);
+        assertThat(cache.evaluate(" test-app -clean ", new EnvVars()), is("test-app -clean"));
+        assertThat(cache.evaluate("", new EnvVars()), is(""));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void evaluate_expression() {
+        EnvVars env = new EnvVars();
+        env.put("FOO", "foo");
+        ExpressionCache cache = new ExpressionCache(2);
+        assertThat(cache.evaluate("war target/${env['FOO']}.war", env), is("war target/foo.war"));
+        assertThat(cache.evaluate("war target/${env['BAR']}.war", env), is("war target/null.war"));
+        assertThat(cache.evaluate("tab\\tseparated", env), is("tab\tseparated"));
+        assertThat(cache.size(), is(2));
+    }
+
+    @Test
+    public void evaluate_reuses_compiled_expression() {
+        ExpressionCache cache = new ExpressionCache(2);
+        EnvVars env = new EnvVars();
+        env.put("FOO", "foo");
+        assertThat(cache.evaluate("${env['FOO']}", env), is("foo"));
+        env.put("FOO", "bar");
+        assertThat(cache.evaluate("${env['FOO']}", env), is("bar"));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void evaluate_evicts_least_recently_used() {
+        ExpressionCache cache = new ExpressionCache(2);
+        EnvVars env = new EnvVars();
+        cache.evaluate("${1}", env);
+        cache.evaluate("${2}", env);
+        cache.evaluate("${3}", env);
+        assertThat(cache.size(), is(2));
+    }
+
+    @Test
+    public void isPlain() {
+        assertThat(ExpressionCache.isPlain("test-app -clean"), is(true));
+        assertThat(ExpressionCache.isPlain("${FOO}"), is(false));
+        assertThat(ExpressionCache.isPlain("$FOO"), is(false));
+        assertThat(ExpressionCache.isPlain("say \"hi\""), is(false));
+        assertThat(ExpressionCache.isPlain("a\\tb"), is(false));
+    }
+}
@@ -1,10 +1,15 @@
 package com.g2one.hudson.grails;
 
 import hudson.FilePath;
+import hudson.Launcher;
 import hudson.model.*;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.TestBuilder;
 
 import java.io.File;
 import java.io.IOException;
@@ -27,7 +32,8 @@ public class GrailsBuilderIntegrationTest extends HudsonTestCase {
         jenkins.getDescriptorByType(GrailsInstallation.DescriptorImpl.class).setInstallations(
                 mockGrails("echo"),
                 mockGrails("buildFailed"),
-                mockGrails("testsFailed")
+                mockGrails("testsFailed"),
+                mockGrails("session")
         );
     }
 
@@ -202,6 +208,207 @@ public class GrailsBuilderIntegrationTest extends HudsonTestCase {
         assertEquals(Result.UNSTABLE, build.getResult());
     }
 
+    public void testSessionMode() throws Exception {
+        GrailsBuilder builder = new GrailsBuilder("\"test-app -clean\" war", "session", "/tmp", null, null, null, null, false, false, true, false, false, false, false);
+        builder.setSessionMode(true);
+        builder.setNonInteractive(true);
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(builder);
+        String log = StringUtils.join(logs(job.scheduleBuild2(0).get()), "\n");
+
+        // the options decide how the console behaves from the start
+        assertTrue(log, log.contains("[MOCK_GRAILS] " + TMP_WORK_DIR + " --non-interactive\n"));
+        assertTrue(log, log.contains("[MOCK_GRAILS_SESSION] test-app -clean --non-interactive"));
+        assertTrue(log, log.contains("[MOCK_GRAILS_SESSION] war --non-interactive"));
+    }
+
+    public void testSessionModeFailed() throws Exception {
+        GrailsBuilder builder = new GrailsBuilder("fail war", "session", "/tmp", null, null, null, null, false, false, true, false, false, false, false);
+        builder.setSessionMode(true);
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = job.scheduleBuild2(0).get();
+
+        assertEquals(Result.FAILURE, build.getResult());
+        assertFalse(FileUtils.readFileToString(build.getLogFile()).contains("[MOCK_GRAILS_SESSION] war"));
+    }
+
+    public void testSessionModeFailedWithColouredOutput() throws Exception {
+        assertSessionFailed("ansi war");
+    }
+
+    public void testSessionModeFailedOnGrails1() throws Exception {
+        assertSessionFailed("legacy war");
+    }
+
+    private void assertSessionFailed(String targets) throws Exception {
+        GrailsBuilder builder = new GrailsBuilder(targets, "session", "/tmp", null, null, null, null, false, false, true, false, false, false, false);
+        builder.setSessionMode(true);
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = job.scheduleBuild2(0).get();
+
+        assertEquals(Result.FAILURE, build.getResult());
+        assertFalse(FileUtils.readFileToString(build.getLogFile()).contains("[MOCK_GRAILS_SESSION] war"));
+    }
+
+    public void testParallelTargets() throws Exception {
+        GrailsBuilder builder = newBuilderWithTargets("codenarc doc \"war target/app.war <- codenarc,doc\"");
+        builder.setParallelTargets(true);
+        String log = StringUtils.join(run(builder), "\n");
+
+        assertTrue(log, log.contains("-Dgrails.project.work.dir=/tmp/parallel/0-codenarc"));
+        assertTrue(log, log.contains("-Dgrails.project.work.dir=/tmp/parallel/1-doc"));
+        assertTrue(log, log.contains("-Dgrails.project.work.dir=/tmp/parallel/2-war"));
+        assertTrue(log, log.contains(" war target/app.war"));
+        assertTrue(log, log.indexOf("Grails target war: SUCCESS") > log.indexOf("Grails target codenarc: SUCCESS"));
+        assertTrue(log, log.indexOf("Grails target war: SUCCESS") > log.indexOf("Grails target doc: SUCCESS"));
+    }
+
+    public void testTargetDependenciesWithoutParallelTargets() throws Exception {
+        String log = StringUtils.join(run(newBuilderWithTargets("\"war target/app.war <- codenarc\" codenarc")), "\n");
+
+        assertFalse(log, log.contains("<-"));
+        assertTrue(log, log.indexOf("[MOCK_GRAILS] " + TMP_WORK_DIR + " war target/app.war\n")
+                > log.indexOf("[MOCK_GRAILS] " + TMP_WORK_DIR + " codenarc\n"));
+    }
+
+    public void testTargetDependenciesInSessionMode() throws Exception {
+        GrailsBuilder builder = new GrailsBuilder("\"war <- codenarc\" codenarc", "session", "/tmp", null, null, null, null, false, false, true, false, false, false, false);
+        builder.setSessionMode(true);
+        String log = StringUtils.join(run(builder), "\n");
+
+        assertFalse(log, log.contains("<-"));
+        assertTrue(log, log.indexOf("[MOCK_GRAILS_SESSION] war\n") > log.indexOf("[MOCK_GRAILS_SESSION] codenarc\n"));
+    }
+
+    public void testUnknownTargetDependency() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(newBuilderWithTargets("\"war <- codenarc\""));
+        FreeStyleBuild build = job.scheduleBuild2(0).get();
+
+        assertEquals(Result.FAILURE, build.getResult());
+        String log = FileUtils.readFileToString(build.getLogFile());
+        assertTrue(log, log.contains("Target war depends on unknown target codenarc"));
+    }
+
+    public void testParallelTargetsFailed() throws Exception {
+        GrailsBuilder builder = new GrailsBuilder("codenarc \"war <- codenarc\"", "buildFailed", "/tmp", null, null, null, null, false, false, true, false, false, false, false);
+        builder.setParallelTargets(true);
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = job.scheduleBuild2(0).get();
+
+        assertEquals(Result.FAILURE, build.getResult());
+        String log = FileUtils.readFileToString(build.getLogFile());
+        assertTrue(log, log.contains("Skipping Grails target war"));
+    }
+
+    public void testParallelTargetsTestsFailed() throws Exception {
+        GrailsBuilder builder = new GrailsBuilder("test-app doc", "testsFailed", "/tmp", null, null, null, null, false, false, true, false, false, false, false);
+        builder.setParallelTargets(true);
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = job.scheduleBuild2(0).get();
+
+        assertEquals(Result.UNSTABLE, build.getResult());
+    }
+
+    public void testTargetMetrics() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(newBuilderWithTargets("clean test-app"));
+        FreeStyleBuild build = job.scheduleBuild2(0).get();
+        String log = StringUtils.join(logs(build), "\n");
+
+        List<GrailsTargetMetrics> targets = build.getAction(GrailsTargetsAction.class).getTargets();
+        assertEquals(2, targets.size());
+        assertEquals("clean", targets.get(0).getTarget());
+        assertEquals("test-app", targets.get(1).getTarget());
+        assertEquals("SUCCESS", targets.get(1).getResult());
+        assertTrue(log, log.contains("Grails target test-app took "));
+        assertTrue(new GrailsTargetsProjectAction(job).hasData());
+    }
+
+    public void testTargetLogSections() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(newBuilderWithTargets("clean test-app"));
+        FreeStyleBuild build = job.scheduleBuild2(0).get();
+
+        List<GrailsTargetMetrics> targets = build.getAction(GrailsTargetsAction.class).getTargets();
+        assertTrue(targets.get(0).hasLogRange());
+        assertEquals(targets.get(0).getLogEnd(), targets.get(1).getLogStart());
+        assertTrue(targets.get(1).getLogEnd() <= build.getLogFile().length());
+
+        String section = createWebClient().goTo(build.getUrl() + "grailsTargets/section?target=1", "text/plain").getWebResponse().getContentAsString();
+        assertTrue(section, section.contains("[MOCK_GRAILS] " + TMP_WORK_DIR + " test-app"));
+        assertFalse(section, section.contains(TMP_WORK_DIR + " clean"));
+        assertTrue(section, section.contains("Grails target test-app took "));
+    }
+
+    public void testTestShards() throws Exception {
+        GrailsBuilder builder = newBuilderWithTargets("clean test-app");
+        builder.setTestShards("2");
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(new TestBuilder() {
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("test/unit/com/example/BookTests.groovy").write("", null);
+                build.getWorkspace().child("test/unit/com/example/AuthorSpec.groovy").write("", null);
+                return true;
+            }
+        });
+        job.getBuildersList().add(builder);
+        String log = StringUtils.join(logs(job.scheduleBuild2(0).get()), "\n");
+
+        assertTrue(log, log.contains("[MOCK_GRAILS] " + TMP_WORK_DIR + " clean"));
+        assertTrue(log, log.contains("-Dgrails.project.work.dir=/tmp/shards/shard-0"));
+        assertTrue(log, log.contains("-Dgrails.project.work.dir=/tmp/shards/shard-1"));
+        assertTrue(log, log.contains("-Dserver.port=8081"));
+        assertTrue(log, log.contains("test-app com.example.Author"));
+        assertTrue(log, log.contains("test-app com.example.Book"));
+        assertTrue(log, log.contains("Grails target test-app [shard 2/2]: SUCCESS"));
+    }
+
+    public void testTestShardsWithCompileCache() throws Exception {
+        GrailsBuilder builder = new GrailsBuilder("test-app", "echo", "/tmp", "target/work", null, null, null, false, false, true, false, false, false, false);
+        builder.setTestShards("2");
+        builder.setCompileCache(true);
+        FreeStyleProject job = createFreeStyleProject();
+        job.getBuildersList().add(new TestBuilder() {
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("test/unit/com/example/BookTests.groovy").write("", null);
+                build.getWorkspace().child("test/unit/com/example/AuthorSpec.groovy").write("", null);
+                return true;
+            }
+        });
+        job.getBuildersList().add(builder);
+        String log = StringUtils.join(logs(job.scheduleBuild2(0).get()), "\n");
+
+        assertTrue(log, log.contains("The compile cache is not used when the tests run in shards"));
+        assertTrue(log, log.contains("-Dgrails.project.work.dir=target/work/shard-0"));
+        assertFalse(log, log.contains("Stored compiled classes"));
+        assertFalse(log, log.contains("Restored compiled classes"));
+    }
+
+    public void testPipelineStep() throws Exception {
+        WorkflowRun build = runPipeline("step([$class: 'GrailsBuilder', targets: 'test-app', name: 'echo', grailsWorkDir: '/tmp'])");
+
+        assertEquals(Result.SUCCESS, build.getResult());
+        assertEcho(FileUtils.readLines(build.getLogFile()), TMP_WORK_DIR + " test-app");
+    }
+
+    public void testPipelineStepFailed() throws Exception {
+        WorkflowRun build = runPipeline("step([$class: 'GrailsBuilder', targets: 'test-app', name: 'buildFailed', grailsWorkDir: '/tmp'])");
+
+        assertEquals(Result.FAILURE, build.getResult());
+        assertTrue(FileUtils.readFileToString(build.getLogFile()).contains("Grails targets failed"));
+    }
+
+    private WorkflowRun runPipeline(String step) throws Exception {
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class, "pipeline");
+        job.setDefinition(new CpsFlowDefinition("node {\n    " + step + "\n}"));
+        return job.scheduleBuild2(0).get();
+    }
+
     private List<String> run(GrailsBuilder builder) {
         return run(builder, null);
     }
@@ -0,0 +1,105 @@
+package com.g2one.hudson.grails;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.LogRotator;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.io.File;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+
+/**
+ * Runs a large number of builds through {@link GrailsBuilder} against the mock Grails
+ * installation and fails if heap, Metaspace (or PermGen) or the number of loaded classes
+ * keep growing from build to build.
+ *
+ * Too slow for the regular test run, so it is only executed with the {@code soak} profile:
+ * <pre>mvn test -Psoak -Dgrails.soak.builds=5000</pre>
+ * The thresholds can be changed with the <tt>grails.soak.*</tt> system properties.
+ */
+public class GrailsBuilderSoakTest extends HudsonTestCase {
+
+    private static final int BUILDS = Integer.getInteger("grails.soak.builds", 2000);
+    private static final int WARMUP_BUILDS = Integer.getInteger("grails.soak.warmup", 200);
+    private static final long MAX_HEAP_PER_BUILD = Long.getLong("grails.soak.maxHeapPerBuild", 16 * 1024);
+    private static final long MAX_METASPACE_PER_BUILD = Long.getLong("grails.soak.maxMetaspacePerBuild", 1024);
+    private static final double MAX_CLASSES_PER_BUILD = Double.parseDouble(System.getProperty("grails.soak.maxClassesPerBuild", "0.05"));
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        jenkins.getDescriptorByType(GrailsInstallation.DescriptorImpl.class).setInstallations(
+                new GrailsInstallation("echo", new File("src/test/resources/mock/echo").getAbsolutePath(), null),
+                new GrailsInstallation("testsFailed", new File("src/test/resources/mock/testsFailed").getAbsolutePath(), null)
+        );
+    }
+
+    public void testEvaluatedTargets() throws Exception {
+        soak(new GrailsBuilder("\"test-app -clean\" \"war target/${env['BUILD_NUMBER']}.war\"", "echo", "/tmp", null, null,
+                "${env['EXECUTOR_NUMBER']}", "foo=${env['BUILD_NUMBER']}\nbar=BAR", false, true, true, true, false, false, false), Result.SUCCESS);
+    }
+
+    public void testFailingTests() throws Exception {
+        soak(new GrailsBuilder("test-app", "testsFailed", "/tmp", null, null, null, null, false, true, true, true, false, false, false), Result.UNSTABLE);
+    }
+
+    private void soak(GrailsBuilder builder, Result expected) throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        job.setLogRotator(new LogRotator(-1, 10));
+        job.getBuildersList().add(builder);
+
+        for (int i = 0; i < WARMUP_BUILDS; i++) {
+            build(job, expected);
+        }
+        Sample before = new Sample();
+        for (int i = 0; i < BUILDS; i++) {
+            build(job, expected);
+        }
+        Sample after = new Sample();
+
+        double heap = (double) (after.heap - before.heap) / BUILDS;
+        double metaspace = (double) (after.metaspace - before.metaspace) / BUILDS;
+        double classes = (double) (after.classes - before.classes) / BUILDS;
+        System.out.println(String.format("%s: %d builds, per build: heap %.1f bytes, metaspace %.1f bytes, classes %.3f",
+                getName(), BUILDS, heap, metaspace, classes));
+
+        assertTrue(String.format("heap grew by %.1f bytes per build", heap), heap <= MAX_HEAP_PER_BUILD);
+        assertTrue(String.format("metaspace grew by %.1f bytes per build", metaspace), metaspace <= MAX_METASPACE_PER_BUILD);
+        assertTrue(String.format("%.3f classes loaded per build", classes), classes <= MAX_CLASSES_PER_BUILD);
+    }
+
+    private void build(FreeStyleProject job, Result expected) throws Exception {
+        FreeStyleBuild build = job.scheduleBuild2(0).get();
+        assertEquals(expected, build.getResult());
+    }
+
+    /**
+     * Memory usage after a full collection.
+     */
+    private static final class Sample {
+
+        private final long heap;
+        private final long metaspace;
+        private final long classes;
+
+        Sample() throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(100);
+            }
+            heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getName().contains("Metaspace") || pool.getName().contains("Perm Gen")) {
+                    used += pool.getUsage().getUsed();
+                }
+            }
+            metaspace = used;
+            ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+            classes = classLoading.getLoadedClassCount();
+        }
+    }
+}
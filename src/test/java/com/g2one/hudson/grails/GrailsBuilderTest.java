@@ -82,6 +82,16 @@ public class GrailsBuilderTest {
                         new String[] {"war", "target/null.war"})));
     }
 
+    @Test
+    public void getTargetsToRun_with_dependencies() {
+        EnvVars env = new EnvVars();
+        assertThat(newBuilderWithTargets("\"war target/app.war <- test-app,doc\" \"test-app -clean\" doc").getTargetsToRun(env),
+                is(arrayOfStrings(
+                        new String[] {"test-app", "-clean"},
+                        new String[] {"doc"},
+                        new String[] {"war", "target/app.war"})));
+    }
+
     @Test
     public void getTargetsToRun_forceUpgrade() {
 
@@ -0,0 +1,121 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class GrailsClassDataSharingTest {
+
+    private File dir;
+    private File grailsHome;
+    private File javaHome;
+    private GrailsClassDataSharing cds;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Util.createTempDir();
+        grailsHome = new File(dir, "grails");
+        FileUtils.writeStringToFile(new File(grailsHome, "lib/org.codehaus.groovy/groovy-all/jars/groovy-all-1.8.6.jar"), "groovy");
+        javaHome = new File(dir, "jdk");
+        FileUtils.writeStringToFile(new File(javaHome, "release"), "JAVA_VERSION=\"17.0.2\"\n");
+        cds = new GrailsClassDataSharing(new FilePath(new File(dir, "cds")));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void javaVersion() {
+        assertThat(GrailsClassDataSharing.javaVersion("JAVA_VERSION=\"1.8.0_292\""), is(8));
+        assertThat(GrailsClassDataSharing.javaVersion("IMPLEMENTOR=\"Eclipse Adoptium\"\nJAVA_VERSION=\"11.0.12\""), is(11));
+        assertThat(GrailsClassDataSharing.javaVersion("JAVA_VERSION=\"21\""), is(21));
+        assertThat(GrailsClassDataSharing.javaVersion("IMPLEMENTOR=\"Oracle Corporation\""), is(-1));
+    }
+
+    @Test
+    public void create_then_use() throws Exception {
+        GrailsClassDataSharing.Archive archive = cds.prepare(grailsHome.getPath(), javaHome.getPath(), true);
+        assertThat(archive.getPending(), not(nullValue()));
+        assertThat(archive.getJavaOpts(), is("-XX:ArchiveClassesAtExit=" + archive.getPending()));
+        assertThat(cds.prepare(grailsHome.getPath(), javaHome.getPath(), false), nullValue());
+
+        FileUtils.writeStringToFile(new File(archive.getPending()), "archive");
+        cds.commit(archive);
+
+        GrailsClassDataSharing.Archive used = cds.prepare(grailsHome.getPath(), javaHome.getPath(), false);
+        assertThat(used.getPath(), is(archive.getPath()));
+        assertThat(used.getPending(), nullValue());
+        assertThat(used.getJavaOpts(), is("-XX:SharedArchiveFile=" + archive.getPath() + " -Xshare:auto"));
+    }
+
+    @Test
+    public void recreate_when_the_installation_changes() throws Exception {
+        GrailsClassDataSharing.Archive archive = cds.prepare(grailsHome.getPath(), javaHome.getPath(), true);
+        FileUtils.writeStringToFile(new File(archive.getPending()), "archive");
+        cds.commit(archive);
+
+        FileUtils.writeStringToFile(new File(grailsHome, "lib/org.springframework/spring-core/jars/spring-core-3.1.0.jar"), "spring");
+        GrailsClassDataSharing.Archive recreated = cds.prepare(grailsHome.getPath(), javaHome.getPath(), true);
+        assertThat(recreated.getPath(), not(archive.getPath()));
+        assertThat(recreated.getPending(), not(nullValue()));
+
+        FileUtils.writeStringToFile(new File(recreated.getPending()), "archive");
+        cds.commit(recreated);
+        assertThat(new File(archive.getPath()).exists(), is(false));
+        assertThat(new File(recreated.getPath()).exists(), is(true));
+    }
+
+    @Test
+    public void not_used_before_java_13() throws Exception {
+        FileUtils.writeStringToFile(new File(javaHome, "release"), "JAVA_VERSION=\"11.0.12\"\n");
+        assertThat(cds.prepare(grailsHome.getPath(), javaHome.getPath(), true), nullValue());
+    }
+
+    @Test
+    public void failed_archive_is_not_used() throws Exception {
+        GrailsClassDataSharing.Archive archive = cds.prepare(grailsHome.getPath(), javaHome.getPath(), true);
+        cds.commit(archive);
+        assertThat(cds.prepare(grailsHome.getPath(), javaHome.getPath(), false), nullValue());
+    }
+
+    @Test
+    public void discard_archive_of_failed_build() throws Exception {
+        GrailsClassDataSharing.Archive archive = cds.prepare(grailsHome.getPath(), javaHome.getPath(), true);
+        FileUtils.writeStringToFile(new File(archive.getPending()), "archive");
+        cds.discard(archive);
+        assertThat(new File(archive.getPending()).exists(), is(false));
+        assertThat(new File(archive.getPath()).exists(), is(false));
+    }
+
+    @Test
+    public void delete_stale_archives() throws Exception {
+        File root = new File(dir, "cds");
+        File stale = new File(root, "installation/fingerprint.stale.tmp");
+        File recent = new File(root, "installation/fingerprint.recent.tmp");
+        File committed = new File(root, "installation/fingerprint.jsa");
+        for (File file : new File[] {stale, recent, committed}) {
+            FileUtils.writeStringToFile(file, "archive");
+        }
+        long now = System.currentTimeMillis();
+        stale.setLastModified(now - GrailsClassDataSharing.STALE_AGE - 60000);
+        committed.setLastModified(now - GrailsClassDataSharing.STALE_AGE - 60000);
+
+        assertThat(GrailsClassDataSharing.deleteStale(root, now - GrailsClassDataSharing.STALE_AGE), is(1));
+        assertThat(stale.exists(), is(false));
+        assertThat(recent.exists(), is(true));
+        assertThat(committed.exists(), is(true));
+    }
+}
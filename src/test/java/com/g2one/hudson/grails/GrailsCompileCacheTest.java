@@ -0,0 +1,165 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+
+public class GrailsCompileCacheTest {
+
+    private File dir;
+    private StreamTaskListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Util.createTempDir();
+        listener = new StreamTaskListener(new NullStream());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void store_and_restore() throws Exception {
+        GrailsCompileCache cache = new GrailsCompileCache(new FilePath(new File(dir, "cache")), GrailsCompileCache.DEFAULT_MAX_SIZE);
+
+        File first = new File(dir, "first");
+        FileUtils.writeStringToFile(new File(first, "grails-app/conf/BuildConfig.groovy"), "grails.project.dependency.resolution = {}");
+        FileUtils.writeStringToFile(new File(first, "grails-app/domain/Book.groovy"), "class Book {}");
+        FileUtils.writeStringToFile(new File(first, "src/groovy/Author.groovy"), "class Author {}");
+        File firstWork = new File(first, "target/work");
+        FileUtils.writeStringToFile(new File(firstWork, "classes/Book.class"), "Book");
+        FileUtils.writeStringToFile(new File(firstWork, "classes/Author.class"), "Author");
+        FileUtils.writeStringToFile(new File(firstWork, "test-reports/TESTS-TestSuites.xml"), "<testsuites/>");
+        cache.store(new FilePath(first), new FilePath(firstWork), "2.0.0", listener);
+
+        File second = new File(dir, "second");
+        FileUtils.copyDirectory(new File(first, "grails-app"), new File(second, "grails-app"));
+        FileUtils.writeStringToFile(new File(second, "src/groovy/Author.groovy"), "class Author { String name }");
+        File secondWork = new File(second, "target/work");
+        cache.restore(new FilePath(second), new FilePath(secondWork), "2.0.0", listener);
+
+        assertThat(FileUtils.readFileToString(new File(secondWork, "classes/Book.class")), is("Book"));
+        assertThat(new File(secondWork, "test-reports").exists(), is(false));
+        // only the changed source is newer than its classes
+        assertTrue(new File(second, "src/groovy/Author.groovy").lastModified() > new File(secondWork, "classes/Author.class").lastModified());
+        assertTrue(new File(second, "grails-app/domain/Book.groovy").lastModified() <= new File(secondWork, "classes/Book.class").lastModified());
+    }
+
+    @Test
+    public void restore_requires_same_configuration() throws Exception {
+        GrailsCompileCache cache = new GrailsCompileCache(new FilePath(new File(dir, "cache")), GrailsCompileCache.DEFAULT_MAX_SIZE);
+
+        File project = new File(dir, "project");
+        FileUtils.writeStringToFile(new File(project, "grails-app/domain/Book.groovy"), "class Book {}");
+        File work = new File(project, "target/work");
+        FileUtils.writeStringToFile(new File(work, "classes/Book.class"), "Book");
+        cache.store(new FilePath(project), new FilePath(work), "2.0.0", listener);
+
+        File other = new File(dir, "other");
+        FileUtils.copyDirectory(new File(project, "grails-app"), new File(other, "grails-app"));
+        cache.restore(new FilePath(other), new FilePath(new File(other, "target/work")), "2.1.0", listener);
+        assertThat(new File(other, "target/work").exists(), is(false));
+    }
+
+    @Test
+    public void restore_only_into_empty_work_dir() throws Exception {
+        GrailsCompileCache cache = new GrailsCompileCache(new FilePath(new File(dir, "cache")), GrailsCompileCache.DEFAULT_MAX_SIZE);
+
+        File project = new File(dir, "project");
+        FileUtils.writeStringToFile(new File(project, "grails-app/domain/Book.groovy"), "class Book {}");
+        File work = new File(project, "target/work");
+        FileUtils.writeStringToFile(new File(work, "classes/Book.class"), "Book");
+        cache.store(new FilePath(project), new FilePath(work), "2.0.0", listener);
+
+        FileUtils.writeStringToFile(new File(work, "classes/Book.class"), "Compiled");
+        cache.restore(new FilePath(project), new FilePath(work), "2.0.0", listener);
+        assertThat(FileUtils.readFileToString(new File(work, "classes/Book.class")), is("Compiled"));
+
+        Util.deleteRecursive(work);
+        assertTrue(work.mkdirs());
+        cache.restore(new FilePath(project), new FilePath(work), "2.0.0", listener);
+        assertThat(FileUtils.readFileToString(new File(work, "classes/Book.class")), is("Book"));
+        assertThat(new File(project, "target").list().length, is(1));
+    }
+
+    @Test
+    public void findProjectWorkDir_from_build_config() throws Exception {
+        File project = new File(dir, "checkout");
+        FileUtils.writeStringToFile(new File(project, "application.properties"), "app.name=bookstore");
+        FileUtils.writeStringToFile(new File(project, "grails-app/conf/BuildConfig.groovy"),
+                "// grails.project.work.dir = \"commented\"\n    grails.project.work.dir = 'target/work'\n");
+        assertThat(GrailsCompileCache.findProjectWorkDir(new FilePath(project), "/work").getRemote(), is(new File(project, "target/work").getPath()));
+
+        FileUtils.writeStringToFile(new File(project, "grails-app/conf/BuildConfig.groovy"),
+                "grails.project.work.dir = \"target/${grailsVersion}\"");
+        assertThat(GrailsCompileCache.findProjectWorkDir(new FilePath(project), "/work"), is(nullValue()));
+    }
+
+    @Test
+    public void findProjectWorkDir_from_app_name() throws Exception {
+        File project = new File(dir, "checkout");
+        FileUtils.writeStringToFile(new File(project, "grails-app/conf/BuildConfig.groovy"), "grails.project.dependency.resolution = {}");
+        assertThat(GrailsCompileCache.findProjectWorkDir(new FilePath(project), "/work"), is(nullValue()));
+
+        FileUtils.writeStringToFile(new File(project, "application.properties"), "app.name=bookstore");
+        File workDir = new File(dir, "work");
+        assertThat(GrailsCompileCache.findProjectWorkDir(new FilePath(project), workDir.getPath()).getRemote(),
+                is(new File(workDir, "projects/bookstore").getPath()));
+        assertThat(GrailsCompileCache.findProjectWorkDir(new FilePath(project), null), is(nullValue()));
+    }
+
+    @Test
+    public void changedSources() {
+        Map<String, String> sources = new HashMap<String, String>();
+        sources.put("grails-app/domain/Book.groovy", "1");
+        sources.put("src/groovy/Author.groovy", "2");
+        Map<String, String> snapshot = new HashMap<String, String>();
+        snapshot.put("grails-app/domain/Book.groovy", "1");
+        snapshot.put("src/groovy/Author.groovy", "3");
+        assertThat(GrailsCompileCache.changedSources(sources, snapshot), is(Arrays.asList("src/groovy/Author.groovy")));
+
+        snapshot.put("src/groovy/Deleted.groovy", "4");
+        assertThat(GrailsCompileCache.changedSources(sources, snapshot), is(nullValue()));
+    }
+
+    @Test
+    public void evict() throws Exception {
+        File root = new File(dir, "cache");
+        File older = snapshot(root, "config/older", 2000);
+        File newer = snapshot(root, "config/newer", 1000);
+        File current = snapshot(root, "other/current", 0);
+
+        assertThat(GrailsCompileCache.evict(root, current, 200), is(1));
+        assertThat(older.exists(), is(false));
+        assertThat(newer.exists(), is(true));
+
+        assertThat(GrailsCompileCache.evict(root, current, 0), is(1));
+        assertThat(current.exists(), is(true));
+    }
+
+    private File snapshot(File root, String path, long age) throws Exception {
+        File snapshot = new File(root, path);
+        FileUtils.writeStringToFile(new File(snapshot, "sources.properties"), "");
+        FileUtils.writeStringToFile(new File(snapshot, "work/classes/Book.class"), new String(new char[100]));
+        snapshot.setLastModified(System.currentTimeMillis() - age);
+        return snapshot;
+    }
+}
@@ -0,0 +1,206 @@
+package com.g2one.hudson.grails;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class GrailsConsoleAnnotatorTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testsFailed() throws IOException {
+        assertThat(annotate("| Tests FAILED  - view reports in /tmp/app/target/test-reports\n", UTF_8).isBuildFailingDueToFailingTests(), is(true));
+        assertThat(annotate("Tests failed: 2 errors, 0 failures\n", UTF_8).isBuildFailingDueToFailingTests(), is(true));
+        assertThat(annotate("| Tests PASSED - view reports in /tmp/app/target/test-reports\n", UTF_8).isBuildFailingDueToFailingTests(), is(false));
+        assertThat(annotate("tests\nfailed\n", UTF_8).isBuildFailingDueToFailingTests(), is(false));
+    }
+
+    @Test
+    public void testsFailed_multibyte_charset() throws IOException {
+        Charset utf16 = Charset.forName("UTF-16LE");
+        assertThat(annotate("| Tests FAILED  - view reports\n", utf16).isBuildFailingDueToFailingTests(), is(true));
+        assertThat(annotate("| Tests PASSED - view reports\n", utf16).isBuildFailingDueToFailingTests(), is(false));
+    }
+
+    @Test
+    public void errorReported() throws IOException {
+        assertThat(annotate("| Error Compilation error\n", UTF_8).isErrorReported(), is(true));
+        assertThat(annotate("No | Error here\n", UTF_8).isErrorReported(), is(false));
+        assertThat(annotate("\u001B[1;31m| \u001B[0mError Compilation error\n", UTF_8).isErrorReported(), is(true));
+        assertThat(annotate("Error executing script Compile: startup failed\n", UTF_8).isErrorReported(), is(true));
+        assertThat(annotate("BUILD FAILED\n", UTF_8).isErrorReported(), is(true));
+        assertThat(annotate("Found 0 errors\n", UTF_8).isErrorReported(), is(false));
+    }
+
+    @Test
+    public void events() throws IOException {
+        GrailsEventsAction events = new GrailsEventsAction();
+        GrailsConsoleAnnotator gca = new GrailsConsoleAnnotator(new NullOutputStream(), UTF_8, GrailsOutputPattern.defaults(), events);
+        gca.write(("| Resolving Dependencies. Please wait...\n" +
+                "| Compiling 42 source files\n" +
+                "| Running 12 unit tests...\n" +
+                "| Running 12 unit tests... 1 of 12\n" +
+                "| Running 12 unit tests... 2 of 12\n" +
+                "| Completed 12 unit tests, 2 failed in 3405ms\n" +
+                "| Tests FAILED  - view reports in /tmp/app/target/test-reports\n" +
+                "Exception in thread \"main\" java.lang.OutOfMemoryError: PermGen space\n" +
+                "BUILD FAILED\n").getBytes(UTF_8));
+        gca.forceEol();
+
+        List<GrailsEvent> list = events.getEvents();
+        assertThat(list.size(), is(8));
+        assertThat(list.get(0).getType(), is(GrailsEvent.Type.DEPENDENCY_RESOLUTION));
+        assertThat(list.get(1).getType(), is(GrailsEvent.Type.COMPILING));
+        assertThat(list.get(1).getCount(), is(42));
+        assertThat(list.get(2).getType(), is(GrailsEvent.Type.RUNNING_TESTS));
+        assertThat(list.get(2).getPhase(), is("unit"));
+        assertThat(list.get(2).getCount(), is(12));
+        assertThat(list.get(3).getType(), is(GrailsEvent.Type.TEST_PROGRESS));
+        assertThat(list.get(3).getCount(), is(2));
+        assertThat(list.get(4).getType(), is(GrailsEvent.Type.COMPLETED_TESTS));
+        assertThat(list.get(4).getCount(), is(12));
+        assertThat(list.get(4).getFailures(), is(2));
+        assertThat(list.get(5).getType(), is(GrailsEvent.Type.TESTS_FAILED));
+        assertThat(list.get(6).getType(), is(GrailsEvent.Type.OUT_OF_MEMORY));
+        assertThat(list.get(7).getType(), is(GrailsEvent.Type.BUILD_FAILED));
+        assertThat(gca.isBuildFailingDueToFailingTests(), is(true));
+    }
+
+    @Test
+    public void large_numbers_are_not_counts() throws IOException {
+        GrailsEventsAction events = new GrailsEventsAction();
+        GrailsConsoleAnnotator gca = new GrailsConsoleAnnotator(new NullOutputStream(), UTF_8, GrailsOutputPattern.defaults(), events);
+        gca.write(("| Compiling 99999999999999999999 source files\n" +
+                "| Running 12 unit tests... 99999999999 of 12\n" +
+                "| Completed 12 unit tests, 99999999999 failed in 3405ms\n" +
+                "| Compiling 42 source files\n").getBytes(UTF_8));
+        gca.forceEol();
+
+        assertThat(events.getEvents().size(), is(1));
+        assertThat(events.getEvents().get(0).getCount(), is(42));
+    }
+
+    @Test
+    public void stripAnsi() {
+        assertThat(GrailsConsoleAnnotator.stripAnsi("\u001B[1;31m| \u001B[0mError \u001B[2K\u001B[1A done"), is("| Error  done"));
+        assertThat(GrailsConsoleAnnotator.stripAnsi("| Error plain"), is("| Error plain"));
+    }
+
+    @Test
+    public void custom_pattern() throws IOException {
+        GrailsEventsAction events = new GrailsEventsAction();
+        GrailsOutputPattern codenarc = new GrailsOutputPattern.Simple("codenarc", GrailsEvent.Type.ERROR);
+        GrailsConsoleAnnotator gca = new GrailsConsoleAnnotator(new NullOutputStream(), UTF_8, Collections.singletonList(codenarc), events);
+        gca.write("CodeNarc completed: (p1=3; p2=12; p3=40)\n| Tests FAILED\n".getBytes(UTF_8));
+        gca.forceEol();
+
+        assertThat(events.getEvents().size(), is(1));
+        assertThat(events.getEvents().get(0).getText(), is("CodeNarc completed: (p1=3; p2=12; p3=40)"));
+        assertThat(gca.isBuildFailingDueToFailingTests(), is(false));
+    }
+
+    @Test
+    public void output_is_unchanged() throws IOException {
+        String text = "| Compiling 12 source files\n| Tests FAILED\nlast line";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GrailsConsoleAnnotator gca = new GrailsConsoleAnnotator(out, UTF_8);
+        gca.write(text.getBytes(UTF_8));
+        gca.forceEol();
+        assertThat(new String(out.toByteArray(), UTF_8), is(text));
+    }
+
+    /**
+     * Matching on raw bytes finds the same lines as decoding and lower casing every line,
+     * which is how lines were matched before.
+     */
+    @Test
+    public void matches_like_decoding() throws IOException {
+        String[] lines = {
+            "| Loading Grails 2.0.4",
+            "| Configuring classpath.",
+            "| Environment set to test.....",
+            "[DEBUG] 2012-06-01 12:00:00,000 org.codehaus.groovy.grails.plugins.DefaultGrailsPluginManager - Loading plugin [controllers]",
+            "| Running 120 unit tests... 42 of 120",
+            "\tat org.codehaus.groovy.runtime.callsite.AbstractCallSite.call(AbstractCallSite.java:116)",
+            "| Tests FAILED  - view reports in /tmp/app/target/test-reports",
+            "Tests failed: 2 errors, 0 failures",
+            "[DEBUG] tEsTs FaIlEd in the middle",
+            "Tests  failed",
+            "tests\tfailed",
+            "R\u00e9sum\u00e9: tests failed, d\u00e9j\u00e0 vu",
+            "Tests fail\u00e9",
+        };
+        for (Charset charset : new Charset[] {UTF_8, Charset.forName("UTF-16LE")}) {
+            for (String line : lines) {
+                DecodingAnnotator decoding = new DecodingAnnotator(new NullOutputStream(), charset);
+                decoding.write((line + "\n").getBytes(charset));
+                assertThat(charset + ": " + line, annotate(line + "\n", charset).isBuildFailingDueToFailingTests(), is(decoding.isBuildFailingDueToFailingTests()));
+            }
+        }
+    }
+
+    /**
+     * Compares the throughput of the annotator with decoding and lower casing every line,
+     * which is how lines were matched before. GrailsConsoleAnnotatorBenchmark measures both
+     * more precisely.
+     */
+    @Test
+    public void throughput() throws IOException {
+        byte[] log = verboseLog(8 * 1024 * 1024);
+
+        long before = bytesPerSecond(log, new DecodingAnnotator(new NullOutputStream(), UTF_8));
+        long after = bytesPerSecond(log, new GrailsConsoleAnnotator(new NullOutputStream(), UTF_8));
+
+        assertThat(String.format("before %,d bytes/sec, after %,d bytes/sec", before, after), after >= before, is(true));
+    }
+
+    /**
+     * The best throughput of a few rounds, after warming up.
+     */
+    private static long bytesPerSecond(byte[] log, OutputStream annotator) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            annotator.write(log);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            annotator.write(log);
+            best = Math.min(best, Math.max(1, System.nanoTime() - start));
+        }
+        return (long) ((double) log.length * 1000000000L / best);
+    }
+
+    private static byte[] verboseLog(int size) {
+        String[] lines = {
+            "| Loading Grails 2.0.4",
+            "| Configuring classpath.",
+            "| Resolving dependencies...",
+            "[DEBUG] 2012-06-01 12:00:00,000 org.codehaus.groovy.grails.plugins.DefaultGrailsPluginManager - Loading plugin [controllers]",
+            "| Running 120 unit tests... 42 of 120",
+            "\tat org.codehaus.groovy.runtime.callsite.AbstractCallSite.call(AbstractCallSite.java:116)",
+        };
+        StringBuilder buf = new StringBuilder(size + 256);
+        for (int i = 0; buf.length() < size; i++) {
+            buf.append(lines[i % lines.length]).append('\n');
+        }
+        return buf.toString().getBytes(UTF_8);
+    }
+
+    private static GrailsConsoleAnnotator annotate(String text, Charset charset) throws IOException {
+        GrailsConsoleAnnotator gca = new GrailsConsoleAnnotator(new NullOutputStream(), charset);
+        gca.write(text.getBytes(charset));
+        gca.forceEol();
+        return gca;
+    }
+}
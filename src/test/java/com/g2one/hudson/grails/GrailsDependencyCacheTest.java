@@ -0,0 +1,106 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+
+public class GrailsDependencyCacheTest {
+
+    private File dir;
+    private StreamTaskListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Util.createTempDir();
+        listener = new StreamTaskListener(new NullStream());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void harvest_and_link() throws Exception {
+        GrailsDependencyCache cache = new GrailsDependencyCache(new FilePath(new File(dir, "cache")));
+
+        File first = new File(dir, "first");
+        FileUtils.writeStringToFile(new File(first, "org.foo/foo/jars/foo-1.0.jar"), "foo");
+        FileUtils.writeStringToFile(new File(first, "org.foo/foo/ivy-1.0.xml"), "<ivy-module/>");
+        cache.harvest(new FilePath(first), listener);
+
+        // the harvested archive is still usable by the workspace it came from
+        assertThat(FileUtils.readFileToString(new File(first, "org.foo/foo/jars/foo-1.0.jar")), is("foo"));
+        assertTrue(new File(dir, "cache/objects/" + GrailsDependencyCache.sha1(new File(first, "org.foo/foo/jars/foo-1.0.jar"))).exists());
+
+        File second = new File(dir, "second");
+        cache.link(new FilePath(second), listener);
+        assertThat(FileUtils.readFileToString(new File(second, "org.foo/foo/jars/foo-1.0.jar")), is("foo"));
+        // metadata is left for each workspace to resolve
+        assertThat(new File(second, "org.foo/foo/ivy-1.0.xml").exists(), is(false));
+    }
+
+    @Test
+    public void link_keeps_existing_files() throws Exception {
+        GrailsDependencyCache cache = new GrailsDependencyCache(new FilePath(new File(dir, "cache")));
+
+        File first = new File(dir, "first");
+        FileUtils.writeStringToFile(new File(first, "org.foo/foo/jars/foo-1.0.jar"), "foo");
+        cache.harvest(new FilePath(first), listener);
+
+        File second = new File(dir, "second");
+        FileUtils.writeStringToFile(new File(second, "org.foo/foo/jars/foo-1.0.jar"), "local");
+        cache.link(new FilePath(second), listener);
+        assertThat(FileUtils.readFileToString(new File(second, "org.foo/foo/jars/foo-1.0.jar")), is("local"));
+    }
+
+    @Test
+    public void harvest_leaves_snapshots() throws Exception {
+        GrailsDependencyCache cache = new GrailsDependencyCache(new FilePath(new File(dir, "cache")));
+
+        File first = new File(dir, "first");
+        File snapshot = new File(first, "org.foo/foo/jars/foo-1.1-SNAPSHOT.jar");
+        FileUtils.writeStringToFile(snapshot, "foo");
+        cache.harvest(new FilePath(first), listener);
+
+        // Ivy overwrites it in place when it changes
+        assertThat(Util.isSymlink(snapshot), is(false));
+        FileUtils.writeStringToFile(snapshot, "changed");
+        File second = new File(dir, "second");
+        cache.link(new FilePath(second), listener);
+        assertThat(new File(second, "org.foo/foo/jars/foo-1.1-SNAPSHOT.jar").exists(), is(false));
+    }
+
+    @Test
+    public void harvest_replaces_archives_by_links_at_once() throws Exception {
+        GrailsDependencyCache cache = new GrailsDependencyCache(new FilePath(new File(dir, "cache")));
+
+        File first = new File(dir, "first");
+        FileUtils.writeStringToFile(new File(first, "org.foo/foo/jars/foo-1.0.jar"), "foo");
+        cache.harvest(new FilePath(first), listener);
+
+        assertThat(new File(first, "org.foo/foo/jars").list().length, is(1));
+        assertThat(FileUtils.readFileToString(new File(first, "org.foo/foo/jars/foo-1.0.jar")), is("foo"));
+    }
+
+    @Test
+    public void isShared() {
+        assertThat(GrailsDependencyCache.isShared("foo-1.0.jar"), is(true));
+        assertThat(GrailsDependencyCache.isShared("grails-hibernate-2.0.zip"), is(true));
+        assertThat(GrailsDependencyCache.isShared("ivy-1.0.xml"), is(false));
+        assertThat(GrailsDependencyCache.isShared("foo-1.0.jar.sha1"), is(false));
+        assertThat(GrailsDependencyCache.isShared("foo-1.1-SNAPSHOT.jar"), is(false));
+    }
+}
@@ -0,0 +1,243 @@
+package com.g2one.hudson.grails;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.tools.DownloadFromUrlInstaller.Installable;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class GrailsDistributionCacheTest {
+
+    private File dir;
+    private StreamTaskListener listener;
+    private HttpServer server;
+    private final Map<String, byte[]> files = Collections.synchronizedMap(new HashMap<String, byte[]>());
+    private final List<String> ranges = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Util.createTempDir();
+        listener = new StreamTaskListener(new NullStream());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        Util.deleteRecursive(dir);
+    }
+
+    /**
+     * Serves the files, with single ranges.
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] content = files.get(exchange.getRequestURI().getPath());
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int start = 0;
+        int end = content.length;
+        int code = 200;
+        if (range != null) {
+            ranges.add(range);
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (bounds[1].length() > 0) {
+                end = Integer.parseInt(bounds[1]) + 1;
+            }
+            if (start >= content.length) {
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            code = 206;
+        }
+        exchange.sendResponseHeaders(code, end - start);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content, start, end - start);
+        out.close();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private static byte[] zip(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("grails-1.3.7/lib/grails.jar"));
+        zip.write(data);
+        zip.closeEntry();
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private Installable installable(String path) throws IOException {
+        Installable installable = new Installable();
+        installable.id = "1.3.7";
+        installable.name = "Grails 1.3.7";
+        installable.url = url(path).toExternalForm();
+        return installable;
+    }
+
+    @Test
+    public void fetch() throws Exception {
+        byte[] content = zip(1000);
+        files.put("/grails-1.3.7.zip", content);
+        GrailsDistributionCache cache = new GrailsDistributionCache(new File(dir, "cache"));
+
+        File archive = cache.fetch(installable("/grails-1.3.7.zip"), listener);
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(archive)));
+        assertThat(FileUtils.readFileToString(new File(archive.getPath() + ".sha1")), is(GrailsDependencyCache.sha1(archive)));
+        assertThat(ranges.isEmpty(), is(true));
+
+        // fetched once
+        files.clear();
+        assertThat(cache.fetch(installable("/grails-1.3.7.zip"), listener), is(archive));
+    }
+
+    @Test
+    public void fetch_in_ranges() throws Exception {
+        byte[] content = zip((int) GrailsDistributionCache.MIN_SPLIT_SIZE + 1000);
+        files.put("/grails-1.3.7.zip", content);
+        GrailsDistributionCache cache = new GrailsDistributionCache(new File(dir, "cache"));
+
+        File archive = cache.fetch(installable("/grails-1.3.7.zip"), listener);
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(archive)));
+        assertThat(ranges.size(), is(GrailsDistributionCache.CONNECTIONS - 1));
+    }
+
+    @Test
+    public void fetch_checks_published_sha1() throws Exception {
+        files.put("/grails-1.3.7.zip", zip(1000));
+        files.put("/grails-1.3.7.zip.sha1", "0123456789012345678901234567890123456789  grails-1.3.7.zip\n".getBytes("US-ASCII"));
+        GrailsDistributionCache cache = new GrailsDistributionCache(new File(dir, "cache"));
+        try {
+            cache.fetch(installable("/grails-1.3.7.zip"), listener);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(new File(dir, "cache/1.3.7.zip").exists(), is(false));
+    }
+
+    @Test
+    public void fetch_checks_zip() throws Exception {
+        files.put("/grails-1.3.7.zip", "<html>Not found</html>".getBytes("US-ASCII"));
+        GrailsDistributionCache cache = new GrailsDistributionCache(new File(dir, "cache"));
+        try {
+            cache.fetch(installable("/grails-1.3.7.zip"), listener);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(new File(dir, "cache/1.3.7.zip").exists(), is(false));
+    }
+
+    @Test
+    public void download_resumes() throws Exception {
+        byte[] content = zip(10000);
+        files.put("/grails-1.3.7.zip", content);
+        File part = new File(dir, "grails-1.3.7.zip.part");
+        FileUtils.writeByteArrayToFile(part, Arrays.copyOf(content, 4000));
+
+        GrailsDistributionCache.download(url("/grails-1.3.7.zip"), part, 0, -1, false);
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(part)));
+        assertThat(ranges, is(Collections.singletonList("bytes=4000-")));
+    }
+
+    @Test
+    public void transfer_resumes() throws Exception {
+        byte[] content = new byte[GrailsDistributionCache.CHUNK * 3 + 100];
+        new Random(1).nextBytes(content);
+        File file = new File(dir, "source.zip");
+        FileUtils.writeByteArrayToFile(file, content);
+        String sha1 = GrailsDependencyCache.sha1(file);
+        FilePath target = new FilePath(new File(dir, "node/grails-cache/distributions/1.3.7.zip"));
+        FileUtils.writeByteArrayToFile(new File(dir, "node/grails-cache/distributions/1.3.7.zip.part"), Arrays.copyOf(content, 5000));
+
+        GrailsDistributionCache.transfer(file, sha1, target, listener);
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(new File(target.getRemote()))));
+        assertThat(new File(dir, "node/grails-cache/distributions/1.3.7.zip.part").exists(), is(false));
+    }
+
+    @Test
+    public void transfer_resumes_after_what_is_written_without_gaps() throws Exception {
+        byte[] content = new byte[GrailsDistributionCache.CHUNK * 3 + 100];
+        new Random(1).nextBytes(content);
+        File file = new File(dir, "source.zip");
+        FileUtils.writeByteArrayToFile(file, content);
+        String sha1 = GrailsDependencyCache.sha1(file);
+        FilePath target = new FilePath(new File(dir, "node/grails-cache/distributions/1.3.7.zip"));
+        // the third chunk was written, the second one wasn't
+        File part = new File(dir, "node/grails-cache/distributions/1.3.7.zip.part");
+        byte[] interrupted = new byte[GrailsDistributionCache.CHUNK * 3];
+        System.arraycopy(content, 0, interrupted, 0, GrailsDistributionCache.CHUNK);
+        System.arraycopy(content, GrailsDistributionCache.CHUNK * 2, interrupted, GrailsDistributionCache.CHUNK * 2, GrailsDistributionCache.CHUNK);
+        FileUtils.writeByteArrayToFile(part, interrupted);
+        FileUtils.writeStringToFile(GrailsDistributionCache.writtenFile(part), Integer.toString(GrailsDistributionCache.CHUNK));
+
+        GrailsDistributionCache.transfer(file, sha1, target, listener);
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(new File(target.getRemote()))));
+        assertThat(GrailsDistributionCache.writtenFile(part).exists(), is(false));
+    }
+
+    @Test
+    public void install_from_mirror() throws Exception {
+        byte[] content = zip(1000);
+        files.put("/mirror/grails-1.3.7.zip", content);
+        GrailsDistributionCache cache = new GrailsDistributionCache(new File(dir, "cache"));
+
+        FilePath archive = cache.install(installable("/dist/grails-1.3.7.zip"), url("/mirror/").toExternalForm(), new FilePath(new File(dir, "node")), listener);
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(new File(archive.getRemote()))));
+        // the controller didn't download it
+        assertThat(new File(dir, "cache").exists(), is(false));
+    }
+}
@@ -0,0 +1,64 @@
+package com.g2one.hudson.grails;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class GrailsEventsActionTest {
+
+    @Test
+    public void progress() {
+        GrailsEventsAction action = new GrailsEventsAction();
+        assertThat(action.getTestProgress(), is(-1));
+
+        action.add(new GrailsEvent(GrailsEvent.Type.RUNNING_TESTS, 1000, "", "unit", 40, -1));
+        assertThat(action.isInProgress(), is(true));
+        assertThat(action.getPhase(), is("unit"));
+        assertThat(action.getTestProgress(), is(0));
+
+        action.add(new GrailsEvent(GrailsEvent.Type.TEST_PROGRESS, 2000, "", "unit", 10, -1));
+        assertThat(action.getTestsDone(), is(10));
+        assertThat(action.getTestProgress(), is(25));
+
+        action.add(new GrailsEvent(GrailsEvent.Type.COMPLETED_TESTS, 3000, "", "unit", 40, 0));
+        assertThat(action.isInProgress(), is(false));
+        assertThat(action.getPhase(), is(nullValue()));
+        assertThat(action.getTestProgress(), is(100));
+    }
+
+    @Test
+    public void phaseDurations() {
+        GrailsEventsAction action = new GrailsEventsAction();
+        action.add(new GrailsEvent(GrailsEvent.Type.DEPENDENCY_RESOLUTION, 1000, ""));
+        action.add(new GrailsEvent(GrailsEvent.Type.COMPILING, 3000, "", null, 12, -1));
+        action.add(new GrailsEvent(GrailsEvent.Type.COMPILING, 4000, "", null, 3, -1));
+        action.add(new GrailsEvent(GrailsEvent.Type.RUNNING_TESTS, 7000, "", "unit", 4, -1));
+        action.add(new GrailsEvent(GrailsEvent.Type.COMPLETED_TESTS, 8000, "", "unit", 4, 0));
+        action.add(new GrailsEvent(GrailsEvent.Type.RUNNING_TESTS, 9000, "", "integration", 2, -1));
+        action.endTarget(12000);
+        action.add(new GrailsEvent(GrailsEvent.Type.COMPILING, 20000, "", null, 1, -1));
+        action.endTarget(21000);
+
+        Map<String, Long> durations = action.getPhaseDurations();
+        assertThat(durations.size(), is(4));
+        assertThat(durations.get(GrailsEventsAction.DEPENDENCY_RESOLUTION), is(2000L));
+        assertThat(durations.get(GrailsEventsAction.COMPILE), is(5000L));
+        assertThat(durations.get("unit"), is(1000L));
+        assertThat(durations.get("integration"), is(3000L));
+    }
+
+    @Test
+    public void progress_events_are_coalesced() {
+        GrailsEventsAction action = new GrailsEventsAction();
+        for (int i = 1; i <= 5; i++) {
+            action.add(new GrailsEvent(GrailsEvent.Type.TEST_PROGRESS, i, "", "unit", i, -1));
+        }
+        assertThat(action.getEvents().size(), is(1));
+        assertThat(action.getEvents().get(0).getCount(), is(5));
+    }
+}
@@ -0,0 +1,111 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import hudson.util.ArgumentListBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class GrailsExecutionPlanTest {
+
+    private static final List<String> ALL_OPTIONS = Arrays.asList("--non-interactive", "--plain-output", "--stacktrace", "--verbose", "--refresh-dependencies");
+
+    @Test
+    public void command() {
+        Map<String, String> systemProperties = new HashMap<String, String>();
+        systemProperties.put("grails.work.dir", "/work");
+        GrailsExecutionPlan plan = new GrailsExecutionPlan(Arrays.asList("grails", "-DBUILD=1"), systemProperties,
+                Collections.singletonList("-Dfoo=bar"), ALL_OPTIONS, new EnvVars());
+
+        assertEquals("grails -DBUILD=1 -Dgrails.work.dir=/work -Dfoo=bar", plan.command().toStringWithQuote());
+        assertEquals("grails -DBUILD=1 -Dfoo=bar", plan.command(Collections.<String, String>emptyMap()).toStringWithQuote());
+    }
+
+    @Test
+    public void sessionCommand() {
+        GrailsExecutionPlan plan = new GrailsExecutionPlan(Arrays.asList("grails"), Collections.<String, String>emptyMap(),
+                Collections.<String>emptyList(), Arrays.asList("--non-interactive", "--plain-output"), new EnvVars());
+
+        assertEquals("grails -Dserver.port=9000 --non-interactive --plain-output",
+                plan.sessionCommand(Collections.singletonMap("server.port", "9000")).toStringWithQuote());
+    }
+
+    @Test
+    public void getSystemProperty() {
+        Map<String, String> systemProperties = new HashMap<String, String>();
+        systemProperties.put("grails.work.dir", "/work");
+        systemProperties.put("grails.project.work.dir", "target/work");
+        GrailsExecutionPlan plan = new GrailsExecutionPlan(Arrays.asList("grails", "-Dgrails.work.dir=/build"), systemProperties,
+                Collections.singletonList("-Dgrails.project.work.dir=target/other"), ALL_OPTIONS, new EnvVars());
+
+        assertEquals("/work", plan.getSystemProperty("grails.work.dir"));
+        assertEquals("target/other", plan.getSystemProperty("grails.project.work.dir"));
+        assertEquals(null, plan.getSystemProperty("server.port"));
+    }
+
+    @Test
+    public void addTarget() {
+        GrailsExecutionPlan plan = newPlan(ALL_OPTIONS);
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        plan.addTarget(args, new String[]{"test-app", "-clean", "--verbose", "-clean"});
+        assertEquals("test-app -clean --verbose --non-interactive --plain-output --stacktrace --refresh-dependencies", args.toStringWithQuote());
+    }
+
+    @Test
+    public void addTargetEvaluatesArguments() {
+        EnvVars env = new EnvVars();
+        env.put("FOO", "foo");
+        GrailsExecutionPlan plan = new GrailsExecutionPlan(Collections.singletonList("grails"), Collections.<String, String>emptyMap(),
+                Collections.<String>emptyList(), Collections.singletonList("--non-interactive"), env);
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        plan.addTarget(args, new String[]{"war", "target/${FOO}.war", "${env['FOO']}"});
+        assertEquals("war target/foo.war foo --non-interactive", args.toStringWithQuote());
+    }
+
+    /**
+     * The plan makes the same command lines as adding the options one at a time.
+     */
+    @Test
+    public void addTargetLikeAddArgument() {
+        GrailsBuilder builder = new GrailsBuilder(null, null, null, null, null, null, null, false, false, false, false, false, false, false);
+        EnvVars env = new EnvVars();
+        String[][] targets = {
+                {"test-app"},
+                {"test-app", "-clean"},
+                {"test-app", "--non-interactive", "-clean"},
+                {"test-app", "-clean", "--refresh-dependencies", "-clean", "unit:"},
+                {"war", "--plain-output", "--stacktrace", "--verbose"},
+                {"grails", "grails"}};
+        for (int enabled = 0; enabled < 1 << ALL_OPTIONS.size(); enabled++) {
+            List<String> options = new ArrayList<String>();
+            for (int i = 0; i < ALL_OPTIONS.size(); i++) {
+                if ((enabled & 1 << i) != 0) {
+                    options.add(ALL_OPTIONS.get(i));
+                }
+            }
+            GrailsExecutionPlan plan = newPlan(options);
+            for (String[] targetAndArgs : targets) {
+                ArgumentListBuilder expected = new ArgumentListBuilder().add("grails");
+                expected.add(targetAndArgs[0]);
+                for (int i = 0; i < ALL_OPTIONS.size(); i++) {
+                    builder.addArgument(ALL_OPTIONS.get(i), (enabled & 1 << i) != 0, expected, env, targetAndArgs);
+                }
+                ArgumentListBuilder args = plan.command();
+                plan.addTarget(args, targetAndArgs);
+                assertEquals(Arrays.toString(targetAndArgs) + " " + options, expected.toStringWithQuote(), args.toStringWithQuote());
+            }
+        }
+    }
+
+    private static GrailsExecutionPlan newPlan(List<String> options) {
+        return new GrailsExecutionPlan(Collections.singletonList("grails"), Collections.<String, String>emptyMap(),
+                Collections.<String>emptyList(), options, new EnvVars());
+    }
+}
@@ -0,0 +1,181 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.tools.InstallSourceProperty;
+import hudson.tools.ToolInstallation;
+import hudson.tools.ToolInstaller;
+import hudson.tools.ToolProperty;
+import org.apache.commons.io.FileUtils;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GrailsInstallationCacheTest extends HudsonTestCase {
+
+    private GrailsInstallation.DescriptorImpl descriptor;
+    private File opt;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        opt = createTmpDir();
+        for (String home : new String[] {"grails-1.3", "grails-2.0.1", "grails-2.0.4"}) {
+            createExecutable(new File(opt, home));
+        }
+        descriptor = jenkins.getDescriptorByType(GrailsInstallation.DescriptorImpl.class);
+        descriptor.setInstallations(newInstallation("grails-1.3", opt + "/grails-1.3"), newInstallation("grails-2.0", opt + "/grails-${VERSION}"));
+    }
+
+    public void testGetInstallation() {
+        assertEquals("/opt/grails-1.3", descriptor.getInstallation("grails-1.3").getHome());
+        assertNull(descriptor.getInstallation("grails-1.2"));
+        assertNull(descriptor.getInstallation(null));
+
+        descriptor.setInstallations(newInstallation("grails-1.3", "/usr/share/grails"));
+        assertEquals("/usr/share/grails", descriptor.getInstallation("grails-1.3").getHome());
+        assertNull(descriptor.getInstallation("grails-2.0"));
+    }
+
+    public void testResolve() throws Exception {
+        GrailsInstallation installation = descriptor.getInstallation("grails-1.3");
+        GrailsInstallation resolved = GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL);
+        assertEquals(opt + "/grails-1.3", resolved.getHome());
+        assertSame(resolved, GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL));
+
+        descriptor.setInstallations(installation);
+        assertNotSame(resolved, GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL));
+    }
+
+    public void testResolveForEnvironment() throws Exception {
+        GrailsInstallation installation = descriptor.getInstallation("grails-2.0");
+        assertEquals(opt + "/grails-2.0.1", GrailsInstallationCache.resolve(installation, new EnvVars("VERSION", "2.0.1"), jenkins, TaskListener.NULL).getHome());
+        assertEquals(opt + "/grails-2.0.4", GrailsInstallationCache.resolve(installation, new EnvVars("VERSION", "2.0.4"), jenkins, TaskListener.NULL).getHome());
+    }
+
+    public void testInvalidate() throws Exception {
+        GrailsInstallation installation = descriptor.getInstallation("grails-1.3");
+        GrailsInstallation resolved = GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL);
+        GrailsInstallationCache.invalidate(jenkins.getNodeName());
+        assertNotSame(resolved, GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL));
+    }
+
+    public void testResolveWaitsForInstallationInProgress() throws Exception {
+        SlowInstaller installer = new SlowInstaller();
+        final GrailsInstallation installation = new GrailsInstallation("grails-auto", "",
+                Collections.singletonList(new InstallSourceProperty(Collections.singletonList(installer))));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<GrailsInstallation> resolve = new Callable<GrailsInstallation>() {
+                public GrailsInstallation call() throws Exception {
+                    return GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL);
+                }
+            };
+            Future<GrailsInstallation> first = executor.submit(resolve);
+            Future<GrailsInstallation> second = executor.submit(resolve);
+            assertSame(first.get(), second.get());
+            assertEquals(1, installer.installations.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testResolveInstallsAgainWhenDeleted() throws Exception {
+        SlowInstaller installer = new SlowInstaller(0);
+        GrailsInstallation installation = new GrailsInstallation("grails-auto", "",
+                Collections.singletonList(new InstallSourceProperty(Collections.singletonList(installer))));
+        GrailsInstallation resolved = GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL);
+        assertSame(resolved, GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL));
+        assertEquals(1, installer.installations.get());
+
+        Util.deleteRecursive(new File(resolved.getHome()));
+        // not looked for on the node until a build finds it missing
+        assertSame(resolved, GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL));
+        GrailsInstallationCache.invalidate(installation, new EnvVars(), jenkins, resolved);
+        GrailsInstallation reinstalled = GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL);
+        assertNotSame(resolved, reinstalled);
+        assertEquals(2, installer.installations.get());
+        assertTrue(new File(reinstalled.getHome(), "bin/grails").exists());
+
+        // another build finding the old one missing doesn't forget the new one
+        GrailsInstallationCache.invalidate(installation, new EnvVars(), jenkins, resolved);
+        assertSame(reinstalled, GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL));
+    }
+
+    public void testResolveRetriesWhenInstallationInProgressFails() throws Exception {
+        SlowInstaller installer = new SlowInstaller(1);
+        final GrailsInstallation installation = new GrailsInstallation("grails-auto", "",
+                Collections.singletonList(new InstallSourceProperty(Collections.singletonList(installer))));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<GrailsInstallation> resolve = new Callable<GrailsInstallation>() {
+                public GrailsInstallation call() throws Exception {
+                    return GrailsInstallationCache.resolve(installation, new EnvVars(), jenkins, TaskListener.NULL);
+                }
+            };
+            Future<GrailsInstallation> first = executor.submit(resolve);
+            Thread.sleep(100);
+            Future<GrailsInstallation> second = executor.submit(resolve);
+            try {
+                first.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            // the waiting build installed it itself
+            assertNotNull(second.get());
+            assertEquals(2, installer.installations.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static final class SlowInstaller extends ToolInstaller {
+
+        final AtomicInteger installations = new AtomicInteger();
+        private final int failures;
+
+        SlowInstaller() {
+            this(0);
+        }
+
+        /**
+         * @param failures how many installations fail first
+         */
+        SlowInstaller(int failures) {
+            super(null);
+            this.failures = failures;
+        }
+
+        @Override
+        public FilePath performInstallation(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
+            int installation = installations.incrementAndGet();
+            Thread.sleep(500);
+            if (installation <= failures) {
+                throw new IOException("Download failed");
+            }
+            FilePath home = preferredLocation(tool, node);
+            createExecutable(new File(home.getRemote()));
+            return home;
+        }
+    }
+
+    private static void createExecutable(File home) throws IOException {
+        FileUtils.writeStringToFile(new File(home, "bin/grails"), "#!/bin/sh");
+    }
+
+    private static GrailsInstallation newInstallation(String name, String home) {
+        return new GrailsInstallation(name, home, Collections.<ToolProperty<?>>emptyList());
+    }
+}
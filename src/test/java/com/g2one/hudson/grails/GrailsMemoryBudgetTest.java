@@ -0,0 +1,80 @@
+package com.g2one.hudson.grails;
+
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+
+public class GrailsMemoryBudgetTest {
+
+    private final StreamTaskListener listener = new StreamTaskListener(new NullStream());
+
+    @Test
+    public void parseMaxHeap() {
+        assertThat(GrailsMemoryBudget.parseMaxHeap("-server -Xmx2g -XX:MaxPermSize=256m"), is(2048));
+        assertThat(GrailsMemoryBudget.parseMaxHeap("-Xmx768M"), is(768));
+        assertThat(GrailsMemoryBudget.parseMaxHeap("-Xmx1048576k"), is(1024));
+        assertThat(GrailsMemoryBudget.parseMaxHeap("-Xmx536870912"), is(512));
+        assertThat(GrailsMemoryBudget.parseMaxHeap("-Xms512m"), is(-1));
+        assertThat(GrailsMemoryBudget.parseMaxHeap(null), is(-1));
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        assertThat(GrailsMemoryBudget.UNLIMITED.acquire(1000000, listener), is(0L));
+        GrailsMemoryBudget.UNLIMITED.release(1000000);
+    }
+
+    @Test
+    public void larger_than_budget_runs_alone() throws Exception {
+        GrailsMemoryBudget budget = new GrailsMemoryBudget("node", 4096);
+        budget.acquire(8192, listener);
+        assertThat(budget.getAvailable(), is(0));
+        budget.release(8192);
+        assertThat(budget.getAvailable(), is(4096));
+    }
+
+    @Test
+    public void waits_first_come_first_served() throws Exception {
+        GrailsMemoryBudget budget = new GrailsMemoryBudget("node", 4096);
+        List<String> started = new CopyOnWriteArrayList<String>();
+        assertThat(budget.acquire(3072, listener), is(0L));
+
+        Thread large = start(budget, 2048, "large", started);
+        Thread.sleep(200);
+        // queued behind the large one although there is room for it
+        Thread small = start(budget, 512, "small", started);
+        Thread.sleep(200);
+        assertTrue(started.isEmpty());
+
+        budget.release(3072);
+        large.join(5000);
+        small.join(5000);
+        assertThat(started.get(0), is("large"));
+        assertThat(started.get(1), is("small"));
+        assertThat(budget.getAvailable(), is(4096 - 2048 - 512));
+    }
+
+    private Thread start(final GrailsMemoryBudget budget, final int megabytes, final String name, final List<String> started) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    budget.acquire(megabytes, listener);
+                    started.add(name);
+                } catch (InterruptedException e) {
+                    // test fails
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+}
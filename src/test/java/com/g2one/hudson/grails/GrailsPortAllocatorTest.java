@@ -0,0 +1,107 @@
+package com.g2one.hudson.grails;
+
+import hudson.remoting.LocalChannel;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class GrailsPortAllocatorTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final LocalChannel channel = new LocalChannel(executor);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void leases_distinct_ports() throws Exception {
+        int first = freeRange(4);
+        GrailsPortAllocator ports = new GrailsPortAllocator(channel, first, 4);
+        Set<Integer> leased = new HashSet<Integer>();
+        for (int i = 0; i < 4; i++) {
+            int port = ports.lease();
+            assertTrue(port >= first && port < first + 4);
+            assertTrue(leased.add(port));
+        }
+        assertThat(ports.getLeased(), is(leased));
+    }
+
+    @Test
+    public void skips_ports_in_use() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            GrailsPortAllocator ports = new GrailsPortAllocator(channel, socket.getLocalPort(), 2);
+            assertThat(ports.lease(), is(socket.getLocalPort() + 1));
+            assertFalse(ports.getLeased().contains(socket.getLocalPort()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void reuses_released_ports() throws Exception {
+        int first = freeRange(2);
+        GrailsPortAllocator ports = new GrailsPortAllocator(channel, first, 2);
+        int port = ports.lease();
+        int other = ports.lease();
+        ports.release(port);
+        assertThat(ports.lease(), is(port));
+        assertThat(ports.getLeased().size(), is(2));
+        ports.release(other);
+        ports.release(port);
+        assertTrue(ports.getLeased().isEmpty());
+    }
+
+    @Test
+    public void fails_when_all_ports_are_leased() throws Exception {
+        GrailsPortAllocator ports = new GrailsPortAllocator(channel, freeRange(1), 1);
+        ports.lease();
+        try {
+            ports.lease();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The first of consecutive ports nothing listens on.
+     */
+    private static int freeRange(int count) throws IOException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            ServerSocket socket = new ServerSocket(0);
+            int first = socket.getLocalPort();
+            socket.close();
+            if (first + count > 65535) {
+                continue;
+            }
+            boolean free = true;
+            for (int port = first; port < first + count && free; port++) {
+                try {
+                    new ServerSocket(port).close();
+                } catch (IOException e) {
+                    free = false;
+                }
+            }
+            if (free) {
+                return first;
+            }
+        }
+        throw new IOException("No free ports");
+    }
+}
@@ -0,0 +1,29 @@
+package com.g2one.hudson.grails;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class GrailsSessionTest {
+
+    @Test
+    public void commandLine_keeps_plain_arguments() {
+        assertThat(GrailsSession.commandLine(Arrays.asList("test-app", "-Dgrails.env=ci", "unit:")), is("test-app -Dgrails.env=ci unit:"));
+    }
+
+    @Test
+    public void commandLine_quotes_arguments_with_spaces() {
+        assertThat(GrailsSession.commandLine(Arrays.asList("war", "-Dapp.title=My App", "target/my app.war")),
+                is("war \"-Dapp.title=My App\" \"target/my app.war\""));
+    }
+
+    @Test
+    public void commandLine_quotes_arguments_with_quotes() {
+        assertThat(GrailsSession.commandLine(Arrays.asList("run-script", "say \"hi\"", "it's", "")),
+                is("run-script 'say \"hi\"' \"it's\" \"\""));
+    }
+}
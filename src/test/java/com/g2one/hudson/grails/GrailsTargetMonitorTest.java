@@ -0,0 +1,95 @@
+package com.g2one.hudson.grails;
+
+import hudson.EnvVars;
+import hudson.model.Result;
+import hudson.remoting.LocalChannel;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+
+public class GrailsTargetMonitorTest {
+
+    @Test
+    public void cpuTicks() {
+        String stat = "4242 (java (grails)) S 4200 4242 4200 0 -1 4202496 51200 0 12 0 1234 567 3 4 20 0 42 0 1000 3000000000 200000 18446744073709551615";
+        assertThat(GrailsTargetMonitor.cpuTicks(stat), is(1234L + 567L));
+    }
+
+    @Test
+    public void statusValue() {
+        String status = "Name:\tjava\nState:\tS (sleeping)\nVmPeak:\t 3000000 kB\nVmHWM:\t  812345 kB\nVmRSS:\t  798000 kB\nThreads:\t42\n";
+        assertThat(GrailsTargetMonitor.statusValue(status, "VmHWM:"), is(812345L));
+        assertThat(GrailsTargetMonitor.statusValue(status, "VmRSS:"), is(798000L));
+        assertThat(GrailsTargetMonitor.statusValue("Name:\tkthreadd\n", "VmRSS:"), is(0L));
+    }
+
+    @Test
+    public void hasVariable() {
+        String cookie = GrailsTargetMonitor.COOKIE + "=1234";
+        assertThat(GrailsTargetMonitor.hasVariable("PATH=/bin\0" + cookie + "\0HOME=/root\0", cookie), is(true));
+        assertThat(GrailsTargetMonitor.hasVariable(cookie + "\0PATH=/bin\0", cookie), is(true));
+        assertThat(GrailsTargetMonitor.hasVariable("PATH=/bin\0" + cookie + "5\0", cookie), is(false));
+        assertThat(GrailsTargetMonitor.hasVariable("PATH=/bin\0", cookie), is(false));
+    }
+
+    @Test
+    public void unknown_without_sample() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            GrailsTargetMonitor monitor = new GrailsTargetMonitor(new LocalChannel(executor), new EnvVars());
+            // nothing runs with the cookie of the monitor
+            GrailsTargetMetrics metrics = monitor.split("clean", Result.SUCCESS);
+            assertThat(metrics.getCpuTime(), is(-1L));
+            assertThat(metrics.getPeakMemory(), is(-1L));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void samples_on_the_node() throws Exception {
+        assumeTrue(new File("/proc/self/stat").exists());
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            GrailsTargetMonitor monitor = new GrailsTargetMonitor(new LocalChannel(executor), new EnvVars());
+            monitor.start();
+            ProcessBuilder builder = new ProcessBuilder("sleep", "10");
+            builder.environment().putAll(monitor.getEnvironment());
+            Process process = builder.start();
+            try {
+                GrailsTargetMetrics metrics = monitor.split("run-app", Result.SUCCESS);
+                assertThat(metrics.getCpuTime() >= 0, is(true));
+                assertThat(metrics.getPeakMemory() > 0, is(true));
+            } finally {
+                process.destroy();
+                process.waitFor();
+            }
+            monitor.stop();
+            // gone before the last sample
+            assertThat(monitor.split("war", Result.SUCCESS).getPeakMemory(), is(-1L));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void clockTicksPerSecond() {
+        assertThat(GrailsTargetMonitor.clockTicksPerSecond() > 0, is(true));
+    }
+
+    @Test
+    public void summary() {
+        GrailsTargetMetrics unknown = new GrailsTargetMetrics("war", "SUCCESS", 500, -1, -1);
+        assertThat(unknown.getSummary(), is(unknown.getDurationString()));
+        assertThat(unknown.getPeakMemoryString(), is("N/A"));
+        assertThat(new GrailsTargetMetrics("war", "SUCCESS", 65000, 90000, 812L * 1024 * 1024).getSummary(),
+                is("1 min 5 sec, CPU 1 min 30 sec, peak memory 812 MB"));
+    }
+}
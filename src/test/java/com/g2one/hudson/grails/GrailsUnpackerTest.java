@@ -0,0 +1,95 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+public class GrailsUnpackerTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Util.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    private File zip(String name, String... entries) throws IOException {
+        File file = new File(dir, name);
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(entries[i]));
+                if (entries[i + 1] != null) {
+                    zip.write(entries[i + 1].getBytes("UTF-8"));
+                }
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void unpack() throws Exception {
+        File zip = zip("grails-1.3.6.zip",
+                "grails-1.3.6/", null,
+                "grails-1.3.6/bin/grails", "#!/bin/sh 1.3.6",
+                "grails-1.3.6/lib/spring.jar", "spring 3.0.5",
+                "grails-1.3.6/lib/groovy.jar", "groovy 1.7.6");
+        FilePath store = new FilePath(new File(dir, "objects"));
+        FilePath target = new FilePath(new File(dir, "1.3.6"));
+
+        assertThat(GrailsUnpacker.unpack(new FilePath(zip), target, store), is(0));
+        assertThat(FileUtils.readFileToString(new File(dir, "1.3.6/grails-1.3.6/bin/grails")), is("#!/bin/sh 1.3.6"));
+        assertThat(FileUtils.readFileToString(new File(dir, "1.3.6/grails-1.3.6/lib/spring.jar")), is("spring 3.0.5"));
+        assertThat(store.list().size(), is(3));
+    }
+
+    @Test
+    public void unpack_shares_files() throws Exception {
+        FilePath store = new FilePath(new File(dir, "objects"));
+        GrailsUnpacker.unpack(new FilePath(zip("grails-1.3.6.zip",
+                "grails-1.3.6/lib/spring.jar", "spring 3.0.5",
+                "grails-1.3.6/lib/groovy.jar", "groovy 1.7.6")), new FilePath(new File(dir, "1.3.6")), store);
+
+        assertThat(GrailsUnpacker.unpack(new FilePath(zip("grails-1.3.7.zip",
+                "grails-1.3.7/lib/spring.jar", "spring 3.0.5",
+                "grails-1.3.7/lib/groovy.jar", "groovy 1.7.8")), new FilePath(new File(dir, "1.3.7")), store), is(1));
+        assertThat(FileUtils.readFileToString(new File(dir, "1.3.7/grails-1.3.7/lib/spring.jar")), is("spring 3.0.5"));
+        assertThat(FileUtils.readFileToString(new File(dir, "1.3.7/grails-1.3.7/lib/groovy.jar")), is("groovy 1.7.8"));
+        assertThat(FileUtils.readFileToString(new File(dir, "1.3.6/grails-1.3.6/lib/groovy.jar")), is("groovy 1.7.6"));
+        assertThat(store.list().size(), is(3));
+    }
+
+    @Test
+    public void unpack_outside_of_target() throws Exception {
+        File zip = zip("evil.zip", "../evil", "evil");
+        try {
+            GrailsUnpacker.unpack(new FilePath(zip), new FilePath(new File(dir, "target")), new FilePath(new File(dir, "objects")));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(new File(dir, "evil").exists(), is(false));
+    }
+}
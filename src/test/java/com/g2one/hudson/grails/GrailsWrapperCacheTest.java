@@ -0,0 +1,136 @@
+package com.g2one.hudson.grails;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class GrailsWrapperCacheTest {
+
+    private File dir;
+    private StreamTaskListener listener;
+    private HttpServer server;
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Util.createTempDir();
+        listener = new StreamTaskListener(new NullStream());
+        final byte[] distribution = zip();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!exchange.getRequestURI().getPath().equals("/dist/grails-2.0.4.zip")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                downloads.incrementAndGet();
+                exchange.sendResponseHeaders(200, distribution.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(distribution);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        Util.deleteRecursive(dir);
+    }
+
+    private static byte[] zip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("grails-2.0.4/bin/grails"));
+        zip.write("#!/bin/sh".getBytes("US-ASCII"));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry("grails-2.0.4/lib/grails.jar"));
+        zip.write(new byte[1000]);
+        zip.closeEntry();
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private File project(String name, String version) throws IOException {
+        File project = new File(dir, name);
+        if (version != null) {
+            FileUtils.writeStringToFile(new File(project, "application.properties"), "app.grails.version=" + version + "\n");
+        }
+        FileUtils.writeStringToFile(new File(project, "wrapper/grails-wrapper.properties"),
+                "wrapper.dist.url=http://127.0.0.1:" + server.getAddress().getPort() + "/dist/\n");
+        return project;
+    }
+
+    @Test
+    public void downloaded_once_for_all_workspaces() throws Exception {
+        GrailsWrapperCache cache = new GrailsWrapperCache(new FilePath(new File(dir, "grails-cache/wrapper")));
+
+        FilePath home = cache.resolve(new FilePath(project("first", "2.0.4")), listener);
+        assertThat(home.getRemote(), is(new File(dir, "grails-cache/wrapper/2.0.4/grails-2.0.4").getPath()));
+        assertThat(new File(home.getRemote(), "lib/grails.jar").length(), is(1000L));
+        assertThat(new File(home.getRemote(), "bin/grails").canExecute(), is(true));
+
+        assertThat(cache.resolve(new FilePath(project("second", "2.0.4")), listener), is(home));
+        assertThat(downloads.get(), is(1));
+    }
+
+    @Test
+    public void concurrent_builds_wait_for_the_download() throws Exception {
+        final GrailsWrapperCache cache = new GrailsWrapperCache(new FilePath(new File(dir, "grails-cache/wrapper")));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<FilePath>> homes = new ArrayList<Future<FilePath>>();
+            for (int i = 0; i < 4; i++) {
+                final File project = project("workspace" + i, "2.0.4");
+                homes.add(executor.submit(new Callable<FilePath>() {
+                    public FilePath call() throws Exception {
+                        return cache.resolve(new FilePath(project), listener);
+                    }
+                }));
+            }
+            for (Future<FilePath> home : homes) {
+                assertThat(new File(home.get().getRemote(), "lib/grails.jar").exists(), is(true));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(downloads.get(), is(1));
+    }
+
+    @Test
+    public void not_used_without_version() throws Exception {
+        GrailsWrapperCache cache = new GrailsWrapperCache(new FilePath(new File(dir, "grails-cache/wrapper")));
+        assertThat(cache.resolve(new FilePath(project("first", null)), listener), nullValue());
+        assertThat(downloads.get(), is(0));
+    }
+}
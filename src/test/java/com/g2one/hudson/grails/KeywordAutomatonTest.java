@@ -0,0 +1,50 @@
+package com.g2one.hudson.grails;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class KeywordAutomatonTest {
+
+    @Test
+    public void scan_overlapping_keywords() {
+        KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("he", "she", "his", "hers"));
+        assertThat(scan(automaton, "ushers"), is(new boolean[] {true, true, false, true}));
+        assertThat(scan(automaton, "this"), is(new boolean[] {false, false, true, false}));
+        assertThat(scan(automaton, "nothing"), is(new boolean[] {false, false, false, false}));
+    }
+
+    @Test
+    public void scan_ignores_case() {
+        KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("tests failed", "build failed"));
+        assertThat(scan(automaton, "| Tests FAILED  - view reports"), is(new boolean[] {true, false}));
+        assertThat(scan(automaton, "BUILD FAILED"), is(new boolean[] {false, true}));
+        assertThat(scan(automaton, "tests passed, build failed"), is(new boolean[] {false, true}));
+    }
+
+    @Test
+    public void scan_restarts_after_partial_match() {
+        KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("tests failed"));
+        assertThat(scan(automaton, "tests tests failed"), is(new boolean[] {true}));
+        assertThat(scan(automaton, "tests fail"), is(new boolean[] {false}));
+    }
+
+    @Test
+    public void isApplicable() {
+        assertThat(KeywordAutomaton.isApplicable(Charset.forName("UTF-8")), is(true));
+        assertThat(KeywordAutomaton.isApplicable(Charset.forName("ISO-8859-1")), is(true));
+        assertThat(KeywordAutomaton.isApplicable(Charset.forName("UTF-16")), is(false));
+    }
+
+    private static boolean[] scan(KeywordAutomaton automaton, String text) {
+        boolean[] found = new boolean[automaton.size()];
+        byte[] b = text.getBytes();
+        automaton.scan(b, b.length, found);
+        return found;
+    }
+}
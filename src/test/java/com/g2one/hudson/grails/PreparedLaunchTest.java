@@ -0,0 +1,56 @@
+package com.g2one.hudson.grails;
+
+import hudson.FilePath;
+import hudson.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class PreparedLaunchTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Util.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void prepare() throws Exception {
+        FilePath workspace = new FilePath(dir);
+        FilePath basePath = workspace.child("app");
+        basePath.child("build.gradle").write("", "UTF-8");
+        FilePath exec = workspace.child("grails").child("bin").child("grails");
+        exec.write("", "UTF-8");
+
+        PreparedLaunch prepared = PreparedLaunch.prepare(workspace, basePath, exec.getRemote());
+        assertThat(prepared.getWorkspacePath(), is(dir.toURI().getPath()));
+        assertThat(prepared.isExecutableFound(), is(true));
+        assertThat(prepared.isGradleProject(), is(true));
+    }
+
+    @Test
+    public void prepare_missing() throws Exception {
+        FilePath workspace = new FilePath(dir);
+        PreparedLaunch prepared = PreparedLaunch.prepare(workspace, workspace, workspace.child("grails").getRemote());
+        assertThat(prepared.isExecutableFound(), is(false));
+        assertThat(prepared.isGradleProject(), is(false));
+    }
+
+    @Test
+    public void prepare_without_executable() throws Exception {
+        FilePath workspace = new FilePath(dir);
+        assertThat(PreparedLaunch.prepare(workspace, workspace, null).isExecutableFound(), is(true));
+    }
+}
@@ -0,0 +1,91 @@
+package com.g2one.hudson.grails;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+public class TargetGraphTest {
+
+    @Test
+    public void parse_without_dependencies() {
+        TargetGraph graph = TargetGraph.parse(targets("codenarc", "test-app unit:", "doc"), false);
+        assertThat(names(graph), is(Arrays.asList("codenarc", "test-app", "doc")));
+        for (TargetGraph.Target target : graph.getTargets()) {
+            assertThat(target.getDependencies().isEmpty(), is(true));
+        }
+        assertThat(graph.getTargets().get(1).getTargetAndArgs(), is(new String[] {"test-app", "unit:"}));
+    }
+
+    @Test
+    public void parse_with_dependencies() {
+        TargetGraph graph = TargetGraph.parse(targets("war target/app.war <- test-app,doc", "test-app <- codenarc", "codenarc", "doc"), false);
+        assertThat(names(graph), is(Arrays.asList("codenarc", "test-app", "doc", "war")));
+
+        TargetGraph.Target war = graph.getTargets().get(3);
+        assertThat(war.getIndex(), is(0));
+        assertThat(war.getTargetAndArgs(), is(new String[] {"war", "target/app.war"}));
+        assertThat(new ArrayList<Integer>(war.getDependencies()), is(Arrays.asList(1, 3)));
+    }
+
+    @Test
+    public void parse_with_spaces_between_dependencies() {
+        TargetGraph graph = TargetGraph.parse(targets("war <- test-app, doc", "test-app", "doc"), false);
+        assertThat(new ArrayList<Integer>(graph.getTargets().get(2).getDependencies()), is(Arrays.asList(1, 2)));
+    }
+
+    @Test
+    public void parse_first_is_barrier() {
+        TargetGraph graph = TargetGraph.parse(targets("upgrade --non-interactive", "codenarc", "doc"), true);
+        assertThat(graph.getTargets().get(0).getDependencies().isEmpty(), is(true));
+        assertThat(new ArrayList<Integer>(graph.getTargets().get(1).getDependencies()), is(Arrays.asList(0)));
+        assertThat(new ArrayList<Integer>(graph.getTargets().get(2).getDependencies()), is(Arrays.asList(0)));
+    }
+
+    @Test
+    public void parse_unknown_dependency() {
+        assertInvalid(targets("war <- test-app"));
+    }
+
+    @Test
+    public void parse_cycle() {
+        assertInvalid(targets("war <- doc", "doc <- war"));
+        assertInvalid(targets("war <- war"));
+    }
+
+    @Test
+    public void parse_missing_target() {
+        assertInvalid(targets("<- doc", "doc"));
+    }
+
+    private static void assertInvalid(List<String[]> targets) {
+        try {
+            TargetGraph.parse(targets, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static List<String[]> targets(String... targets) {
+        List<String[]> result = new ArrayList<String[]>();
+        for (String target : targets) {
+            result.add(target.split(" "));
+        }
+        return result;
+    }
+
+    private static List<String> names(TargetGraph graph) {
+        List<String> result = new ArrayList<String>();
+        for (TargetGraph.Target target : graph.getTargets()) {
+            result.add(target.getName());
+        }
+        return result;
+    }
+}
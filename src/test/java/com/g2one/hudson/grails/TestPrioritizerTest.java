@@ -0,0 +1,38 @@
+package com.g2one.hudson.grails;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class TestPrioritizerTest {
+
+    private static final List<String> TESTS = Arrays.asList("com.example.Author", "com.example.Book", "com.example.BookController", "Isbn");
+
+    @Test
+    public void getChangedTests_changed_test() {
+        assertThat(changed("test/unit/com/example/BookTests.groovy"), is(Arrays.asList("com.example.Book")));
+        assertThat(changed("test/unit/IsbnSpec.groovy"), is(Arrays.asList("Isbn")));
+    }
+
+    @Test
+    public void getChangedTests_changed_class() {
+        assertThat(changed("grails-app/controllers/com/example/BookController.groovy"), is(Arrays.asList("com.example.BookController")));
+        assertThat(changed("src/java/com/example/Author.java", "grails-app/domain/com/example/Book.groovy"),
+                is(Arrays.asList("com.example.Author", "com.example.Book")));
+    }
+
+    @Test
+    public void getChangedTests_other_files() {
+        assertThat(changed("grails-app/views/book/list.gsp", "grails-app/conf/BuildConfig.groovy", "Book"), is(new ArrayList<String>()));
+    }
+
+    private List<String> changed(String... paths) {
+        return new ArrayList<String>(TestPrioritizer.getChangedTests(Arrays.asList(paths), TESTS));
+    }
+}
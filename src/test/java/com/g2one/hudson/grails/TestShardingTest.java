@@ -0,0 +1,62 @@
+package com.g2one.hudson.grails;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class TestShardingTest {
+
+    @Test
+    public void isShardable() {
+        assertThat(TestSharding.isShardable(new String[]{"test-app"}), is(true));
+        assertThat(TestSharding.isShardable(new String[]{"test-app", "unit:", "-echoOut"}), is(true));
+        assertThat(TestSharding.isShardable(new String[]{"test-app", "BookController"}), is(false));
+        assertThat(TestSharding.isShardable(new String[]{"war"}), is(false));
+    }
+
+    @Test
+    public void toPattern() {
+        assertThat(TestSharding.toPattern("com.example.BookControllerTests"), is("com.example.BookController"));
+        assertThat(TestSharding.toPattern("BookTest"), is("Book"));
+        assertThat(TestSharding.toPattern("BookSpec"), is("Book"));
+        assertThat(TestSharding.toPattern("Book"), is(nullValue()));
+        assertThat(TestSharding.toPattern("Spec"), is(nullValue()));
+    }
+
+    @Test
+    public void split_balances_durations() {
+        Map<String, Float> durations = new HashMap<String, Float>();
+        durations.put("A", 10f);
+        durations.put("B", 6f);
+        durations.put("C", 5f);
+        durations.put("D", 4f);
+        durations.put("E", 1f);
+        List<List<String>> shards = TestSharding.split(Arrays.asList("A", "B", "C", "D", "E"), durations, 2);
+        assertThat(shards.size(), is(2));
+        assertThat(shards.get(0), is(Arrays.asList("A", "D")));
+        assertThat(shards.get(1), is(Arrays.asList("B", "C", "E")));
+    }
+
+    @Test
+    public void split_without_history() {
+        Map<String, Float> durations = Collections.emptyMap();
+        List<List<String>> shards = TestSharding.split(Arrays.asList("A", "B", "C", "D", "E"), durations, 2);
+        assertThat(shards.get(0), is(Arrays.asList("A", "C", "E")));
+        assertThat(shards.get(1), is(Arrays.asList("B", "D")));
+    }
+
+    @Test
+    public void split_into_more_shards_than_tests() {
+        List<List<String>> shards = TestSharding.split(Arrays.asList("A", "B"), new HashMap<String, Float>(), 4);
+        assertThat(shards.size(), is(2));
+    }
+}